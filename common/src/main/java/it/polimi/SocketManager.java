@@ -233,6 +233,36 @@ public abstract class SocketManager implements Closeable {
         }
     }
 
+    /**
+     * Send a packet without waiting for the ack.
+     * Several packets can be in flight at the same time, even to the same address.
+     *
+     * @param packet  packet to be sent
+     * @param address address to send to
+     * @return a future completed when the ack is received, or exceptionally if the packet can't be sent
+     * or the ack is not received within the timeout
+     */
+    protected CompletableFuture<Void> doSendAsync(Packet packet, SocketAddress address) {
+        if (!canSendNewPackets)
+            return CompletableFuture.failedFuture(new IOException(CLOSE_EX_MSG));
+
+        long seqN = seq.getAndIncrement();
+        CompletableFuture<Void> ackPromise = new CompletableFuture<>();
+        waitingAcks.put(seqN, ackPromise);
+        ackPromise.whenComplete((_, _) -> waitingAcks.remove(seqN));
+
+        CompletableFuture<Void> sentPromise = new CompletableFuture<>();
+        // The timeout starts once the packet is written, not while it is waiting in the queue
+        sentPromise.whenComplete((_, ex) -> {
+            if (ex != null)
+                ackPromise.completeExceptionally(ex instanceof IOException ? ex : new IOException(ex));
+            else
+                ackPromise.orTimeout(timeout, TimeUnit.MILLISECONDS);
+        });
+        outPacketQueue.add(new QueuedOutput(new SeqPacketImpl(packet, seqN), sentPromise, address));
+        return ackPromise;
+    }
+
     private void doSend(SeqPacket packet, SocketAddress address) throws IOException {
         if (!canSendNewPackets)
             throw new IOException(CLOSE_EX_MSG);
@@ -2,7 +2,29 @@ package it.polimi.messages;
 
 import java.util.Map;
 
+/**
+ * Message closing a chat.
+ * Two close messages are equal if they have the same {@link #id()}, even if one of them is compacted.
+ *
+ * @param vectorClocks
+ * @param sender
+ */
 public record CloseMessage(Map<String, Integer> vectorClocks, String sender) implements Message {
+    @Override
+    public CloseMessage compact() {
+        return vectorClocks.size() == 1 ? this : new CloseMessage(Map.of(sender, vectorClocks.get(sender)), sender);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof CloseMessage other && id().equals(other.id());
+    }
+
+    @Override
+    public int hashCode() {
+        return id().hashCode();
+    }
+
     @Override
     public String toString() {
         return "CLOSED THIS CHAT";
@@ -11,6 +11,24 @@ public sealed interface Message extends Serializable permits CloseMessage, Strin
 
     String toString();
 
+    /**
+     * @return the identifier of the message (sender and sender clock)
+     */
+    default MessageId id() {
+        return new MessageId(sender(), vectorClocks().get(sender()));
+    }
+
+    /**
+     * Returns a copy of this message which only keeps the clock of the sender.
+     * <p>
+     * Once a message is causally stable (every member of the chat has received it), its full vector clocks
+     * are not needed anymore for ordering, so only its identifier must be kept.
+     * The compacted message is equal to the original one.
+     *
+     * @return the compacted message
+     */
+    Message compact();
+
     /**
      * A prettier toString() method
      *
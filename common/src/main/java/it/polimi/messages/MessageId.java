@@ -0,0 +1,12 @@
+package it.polimi.messages;
+
+import java.io.Serializable;
+
+/**
+ * Identifier of a message inside a chat: the sender and the clock of the sender when the message was sent
+ *
+ * @param sender id of the sender
+ * @param clock  clock of the sender in the message vector clocks
+ */
+public record MessageId(String sender, int clock) implements Serializable {
+}
@@ -1,15 +1,32 @@
 package it.polimi.messages;
 
 import java.util.Map;
+import java.util.Objects;
 
 /**
- * String message object
+ * String message object.
+ * Two messages are equal if they have the same text and {@link #id()}, even if one of them is compacted.
  *
  * @param msg
  * @param vectorClocks
  * @param sender
  */
 public record StringMessage(String msg, Map<String, Integer> vectorClocks, String sender) implements Message {
+    @Override
+    public StringMessage compact() {
+        return vectorClocks.size() == 1 ? this : new StringMessage(msg, Map.of(sender, vectorClocks.get(sender)), sender);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof StringMessage other && id().equals(other.id()) && msg.equals(other.msg);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id(), msg);
+    }
+
     @Override
     public String toString() {
         StringBuilder temp = new StringBuilder();
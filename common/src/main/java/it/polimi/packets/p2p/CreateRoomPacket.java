@@ -8,6 +8,11 @@ import java.util.UUID;
  * @param id of the newly created chatroom
  * @param name of the new chatroom
  * @param ids of all peers in the new chatroom
+ * @param dissemination how the messages of the new chatroom are disseminated
  */
-public record CreateRoomPacket(UUID id, String name, Set<String> ids) implements P2PPacket {
+public record CreateRoomPacket(UUID id, String name, Set<String> ids, Dissemination dissemination) implements P2PPacket {
+
+    public CreateRoomPacket(UUID id, String name, Set<String> ids) {
+        this(id, name, ids, Dissemination.direct());
+    }
 }
@@ -0,0 +1,55 @@
+package it.polimi.packets.p2p;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * How the messages of a chatroom are disseminated to its members
+ *
+ * @param strategy strategy used by the members
+ * @param fanout   number of members each message is pushed to by a member, 0 for {@link Strategy#DIRECT}
+ */
+public record Dissemination(Strategy strategy, int fanout) implements Serializable {
+
+    public enum Strategy {
+        /**
+         * The sender sends each message to all the members
+         */
+        DIRECT,
+        /**
+         * The sender pushes each message to {@code fanout} random members, and each member relays the messages
+         * it receives for the first time to {@code fanout} random members
+         */
+        GOSSIP,
+        /**
+         * Each message is forwarded along a tree of the members rooted at its sender, in which each member has
+         * {@code fanout} children
+         */
+        TREE
+    }
+
+    public Dissemination {
+        Objects.requireNonNull(strategy);
+        if (strategy == Strategy.DIRECT ? fanout != 0 : fanout < 1)
+            throw new IllegalArgumentException(STR."Invalid fanout \{fanout} for \{strategy}");
+    }
+
+    public static Dissemination direct() {
+        return new Dissemination(Strategy.DIRECT, 0);
+    }
+
+    public static Dissemination gossip(int fanout) {
+        return new Dissemination(Strategy.GOSSIP, fanout);
+    }
+
+    public static Dissemination tree(int fanout) {
+        return new Dissemination(Strategy.TREE, fanout);
+    }
+
+    /**
+     * @return true if the members forward the messages they receive to other members
+     */
+    public boolean relays() {
+        return strategy != Strategy.DIRECT;
+    }
+}
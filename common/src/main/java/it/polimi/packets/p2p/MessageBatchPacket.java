@@ -0,0 +1,13 @@
+package it.polimi.packets.p2p;
+
+import it.polimi.messages.StringMessage;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * @param chatId of the chatroom the messages were sent to
+ * @param msgs   messages, in causal order
+ */
+public record MessageBatchPacket(UUID chatId, List<StringMessage> msgs) implements P2PPacket {
+}
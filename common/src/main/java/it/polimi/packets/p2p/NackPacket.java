@@ -0,0 +1,16 @@
+package it.polimi.packets.p2p;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Request for the messages which are blocking the delivery of the waiting messages of a chat.
+ * The receiver answers with the messages of each user after the clock in {@code have}, up to the clock in {@code need}.
+ *
+ * @param id     id of the peer asking for the missing messages
+ * @param chatId of the chatroom
+ * @param have   vector clocks of the chat of the requesting peer
+ * @param need   for each user, the highest clock needed
+ */
+public record NackPacket(String id, UUID chatId, Map<String, Integer> have, Map<String, Integer> need) implements P2PPacket {
+}
@@ -0,0 +1,14 @@
+package it.polimi.packets.p2p;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Digest of the rooms of a peer, sent when a connection is established.
+ * The receiver answers with the messages it has which are not covered by the vector clocks.
+ *
+ * @param id           id of the peer asking for the missing messages
+ * @param vectorClocks vector clocks of each room shared with the receiver
+ */
+public record SyncRequestPacket(String id, Map<UUID, Map<String, Integer>> vectorClocks) implements P2PPacket {
+}
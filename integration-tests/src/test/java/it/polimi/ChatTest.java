@@ -8,6 +8,10 @@ import it.polimi.packets.p2p.CloseRoomPacket;
 import it.polimi.packets.p2p.MessagePacket;
 import it.polimi.packets.p2p.P2PPacket;
 import it.polimi.peer.*;
+import it.polimi.peer.events.MessagesAdded;
+import it.polimi.peer.events.PeerEvent;
+import it.polimi.peer.events.RoomAdded;
+import it.polimi.peer.events.UserConnected;
 import it.polimi.peer.exceptions.DiscoveryUnreachableException;
 import it.polimi.peer.utility.MessageGUI;
 import org.junit.jupiter.api.AfterEach;
@@ -15,6 +19,7 @@ import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.beans.PropertyChangeEvent;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -22,11 +27,13 @@ import java.net.SocketAddress;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -46,15 +53,18 @@ class ChatTest {
 
     private static void deleteBackups() throws IOException {
         var users = Set.of(ID1, ID2, ID3);
-        for (String u : users) {
-            var path = Paths.get(BackupManager.SAVE_DIR + u);
-            if (Files.exists(path))
-                try (Stream<Path> walk = Files.walk(path)) {
-                    walk.sorted(Comparator.reverseOrder())
-                            .map(Path::toFile)
-                            .forEach(File::delete);
-                }
-        }
+        for (String u : users)
+            deleteBackup(u);
+    }
+
+    private static void deleteBackup(String user) throws IOException {
+        var path = Paths.get(BackupManager.SAVE_DIR + user);
+        if (Files.exists(path))
+            try (Stream<Path> walk = Files.walk(path)) {
+                walk.sorted(Comparator.reverseOrder())
+                        .map(Path::toFile)
+                        .forEach(File::delete);
+            }
     }
 
     @BeforeEach
@@ -163,6 +173,237 @@ class ChatTest {
         }
     }
 
+    @Test
+    void concurrentSendsAreSequenced() throws ExecutionException, InterruptedException, TimeoutException, IOException, DiscoveryUnreachableException {
+        System.out.println("-------concurrentSendsAreSequenced----------------");
+        final int senders = 8;
+        final int msgsPerSender = 50;
+        CompletableFuture<ChatRoom> chat1Promise = new CompletableFuture<>();
+        CompletableFuture<ChatRoom> chat2Promise = new CompletableFuture<>();
+        CountDownLatch users1 = new CountDownLatch(1);
+        CountDownLatch users2 = new CountDownLatch(1);
+        List<Message> msg2List = new CopyOnWriteArrayList<>();
+        CountDownLatch msg2 = new CountDownLatch(senders * msgsPerSender);
+        try (
+                PeerNetManager p1 = new PeerNetManager(ID1, 12345, e -> chat1Promise.complete((ChatRoom) e.getNewValue()),
+                        e -> users1.countDown(),
+                        _ -> {
+                        });
+
+                PeerNetManager p2 = new PeerNetManager(ID2, 12346, e -> chat2Promise.complete((ChatRoom) e.getNewValue()),
+                        e -> users2.countDown(),
+                        e -> messagesOf(e).forEach(m -> {
+                            msg2List.add(m);
+                            msg2.countDown();
+                        }))
+        ) {
+            PeerController c1 = p1.getController();
+            assertTrue(users1.await(500, TimeUnit.MILLISECONDS));
+            assertTrue(users2.await(500, TimeUnit.MILLISECONDS));
+
+            c1.createRoom("room", Set.of(ID1, ID2));
+            ChatRoom chat1 = chat1Promise.get(500, TimeUnit.MILLISECONDS);
+            chat2Promise.get(500, TimeUnit.MILLISECONDS);
+
+            long start = System.nanoTime();
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int s = 0; s < senders; s++) {
+                    int sender = s;
+                    executor.submit(() -> {
+                        for (int i = 0; i < msgsPerSender; i++)
+                            c1.sendMessage(STR."\{sender}-\{i}", chat1);
+                    });
+                }
+            }
+            long sendMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            System.out.println(STR."Sent \{senders * msgsPerSender} messages in \{sendMillis} ms");
+
+            assertTrue(msg2.await(10, TimeUnit.SECONDS));
+            // Messages are delivered once, in the order of their clocks
+            assertEquals(senders * msgsPerSender, msg2List.size());
+            for (int i = 0; i < msg2List.size(); i++)
+                assertEquals(i + 1, msg2List.get(i).id().clock());
+            // The clocks are assigned in the order of the calls of each sender
+            for (int s = 0; s < senders; s++) {
+                String prefix = STR."\{s}-";
+                List<String> sent = msg2List.stream()
+                        .map(m -> ((StringMessage) m).msg())
+                        .filter(m -> m.startsWith(prefix))
+                        .toList();
+                assertEquals(Stream.iterate(0, i -> i + 1).limit(msgsPerSender).map(i -> prefix + i).toList(), sent);
+            }
+            // Sending doesn't wait for the messages to be received
+            assertTrue(sendMillis < 5000);
+        }
+    }
+
+    @Test
+    void headlessClients() throws InterruptedException, TimeoutException, ExecutionException, IOException, DiscoveryUnreachableException {
+        System.out.println("-------headlessClients----------------");
+        CountDownLatch connected = new CountDownLatch(2);
+        CompletableFuture<ChatRoom> room2Promise = new CompletableFuture<>();
+        Consumer<PeerEvent> onConnected = e -> {
+            if (e instanceof UserConnected)
+                connected.countDown();
+        };
+        try (PeerClient client1 = PeerClient.join("localhost", ID1, 12345, onConnected);
+             PeerClient client2 = PeerClient.join("localhost", ID2, 12346, e -> {
+                 onConnected.accept(e);
+                 if (e instanceof RoomAdded(ChatRoom room))
+                     room2Promise.complete(room);
+             })) {
+            assertTrue(connected.await(500, TimeUnit.MILLISECONDS));
+            assertEquals(Set.of(ID2), client1.getPeers());
+
+            ChatRoom room1 = client1.createRoom("room", Set.of(ID2));
+            assertEquals(Set.of(ID1, ID2), room1.getUsers());
+            client1.send(room1, "TEST");
+
+            ChatRoom room2 = room2Promise.get(500, TimeUnit.MILLISECONDS);
+            assertEquals(room1.getId(), room2.getId());
+            assertSame(room2, client2.getRoom(room1.getId()).orElseThrow());
+
+            // The messages are streamed from the beginning of the room
+            BlockingQueue<Message> received = new LinkedBlockingQueue<>();
+            client2.messages(room2).subscribe(new Flow.Subscriber<>() {
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    subscription.request(Long.MAX_VALUE);
+                }
+
+                @Override
+                public void onNext(Message item) {
+                    received.add(item);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                }
+
+                @Override
+                public void onComplete() {
+                }
+            });
+            assertMessageEquals((StringMessage) received.poll(1, TimeUnit.SECONDS), "TEST", ID1);
+
+            client2.send(room2, "TEST2");
+            assertMessageEquals((StringMessage) received.poll(1, TimeUnit.SECONDS), "TEST2", ID2);
+        }
+    }
+
+    @Test
+    void lazyConnections() throws InterruptedException, TimeoutException, ExecutionException, IOException, DiscoveryUnreachableException {
+        System.out.println("-------lazyConnections----------------");
+        Set<String> connected1 = ConcurrentHashMap.newKeySet();
+        Set<String> connected2 = ConcurrentHashMap.newKeySet();
+        Set<String> connected3 = ConcurrentHashMap.newKeySet();
+        CompletableFuture<ChatRoom> room1Promise = new CompletableFuture<>();
+        CompletableFuture<ChatRoom> room2Promise = new CompletableFuture<>();
+        BlockingQueue<Message> received1 = new LinkedBlockingQueue<>();
+        BlockingQueue<Message> received3 = new LinkedBlockingQueue<>();
+        try (PeerClient client1 = PeerClient.join("localhost", ID1, 12345, e -> {
+            if (e instanceof UserConnected(String id))
+                connected1.add(id);
+            if (e instanceof RoomAdded(ChatRoom room))
+                room1Promise.complete(room);
+            if (e instanceof MessagesAdded(ChatRoom room, List<Message> msgs) && room.getUsers().contains(ID2))
+                received1.addAll(msgs);
+        }, true);
+             PeerClient client2 = PeerClient.join("localhost", ID2, 12346, e -> {
+                 if (e instanceof UserConnected(String id))
+                     connected2.add(id);
+                 if (e instanceof RoomAdded(ChatRoom room))
+                     room2Promise.complete(room);
+             }, true);
+             PeerClient client3 = PeerClient.join("localhost", ID3, 12347, e -> {
+                 if (e instanceof UserConnected(String id))
+                     connected3.add(id);
+                 if (e instanceof MessagesAdded(_, List<Message> msgs))
+                     received3.addAll(msgs);
+             }, true)) {
+            // No rooms, no connections
+            Thread.sleep(300);
+            assertEquals(Set.of(ID1, ID2), client3.getPeers());
+            assertEquals(Set.of(), connected1);
+            assertEquals(Set.of(), connected2);
+            assertEquals(Set.of(), connected3);
+
+            // The members of a new room are contacted on demand
+            ChatRoom room3 = client3.createRoom("room", Set.of(ID1));
+            ChatRoom room1 = room1Promise.get(2, TimeUnit.SECONDS);
+            assertEquals(room3.getId(), room1.getId());
+            client1.send(room1, "TEST");
+            assertMessageEquals((StringMessage) received3.poll(1, TimeUnit.SECONDS), "TEST", ID1);
+
+            assertEquals(Set.of(ID3), connected1);
+            assertEquals(Set.of(), connected2);
+            assertEquals(Set.of(ID1), connected3);
+
+            // The address of a member which registered later, and never contacted us, is asked to the discovery
+            ChatRoom room12 = client1.createRoom("room2", Set.of(ID2));
+            ChatRoom room2 = room2Promise.get(2, TimeUnit.SECONDS);
+            assertEquals(room12.getId(), room2.getId());
+            client2.send(room2, "TEST2");
+            assertMessageEquals((StringMessage) received1.poll(1, TimeUnit.SECONDS), "TEST2", ID2);
+
+            assertEquals(Set.of(ID2, ID3), connected1);
+            assertEquals(Set.of(ID1), connected2);
+            assertEquals(Set.of(ID1), connected3);
+        }
+    }
+
+    @Test
+    void startupDoesNotWaitForEachOfflinePeer() throws Exception {
+        System.out.println("-------startupDoesNotWaitForEachOfflinePeer----------------");
+        final int offline = 10;
+        List<PeerNetManager> offlinePeers = new ArrayList<>();
+        List<ImproperShutdownSocket> offlineSockets = new ArrayList<>();
+        try {
+            // Peers which are registered to the discovery, but crashed without saying goodbye
+            for (int i = 0; i < offline; i++) {
+                offlinePeers.add(new PeerNetManager(STR."offline\{i}", 12400 + i, _ -> {
+                }, _ -> {
+                }, _ -> {
+                }) {
+                    @Override
+                    protected PeerSocketManager createSocketManager() throws IOException {
+                        ImproperShutdownSocket s = new ImproperShutdownSocket(port);
+                        offlineSockets.add(s);
+                        return new PeerSocketManager(getId(), executorService, discoveryAddr, 1000, s);
+                    }
+                });
+            }
+            offlineSockets.forEach(ImproperShutdownSocket::lock);
+
+            CountDownLatch disconnected = new CountDownLatch(offline);
+            long start = System.nanoTime();
+            try (PeerNetManager p1 = new PeerNetManager(ID1, 12345, _ -> {
+            }, e -> {
+                if (e.getPropertyName().equals("USER_DISCONNECTED"))
+                    disconnected.countDown();
+            }, _ -> {
+            })) {
+                long startupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                System.out.println(STR."Started in \{startupMillis} ms with \{offline} offline peers");
+
+                // Sequentially, each offline peer would take the whole network timeout of 1 second
+                assertTrue(startupMillis < 3000);
+                assertTrue(disconnected.await(500, TimeUnit.MILLISECONDS));
+                assertTrue(p1.getIps().keySet().containsAll(offlinePeers.stream().map(PeerNetManager::getId).toList()));
+            }
+        } finally {
+            offlineSockets.forEach(ImproperShutdownSocket::unlock);
+            for (PeerNetManager p : offlinePeers) {
+                try {
+                    p.close();
+                } catch (DiscoveryUnreachableException e) {
+                    e.printStackTrace();
+                }
+                deleteBackup(p.getId());
+            }
+        }
+    }
+
     @Test
     void vcTest() throws ExecutionException, InterruptedException, TimeoutException, IOException, DiscoveryUnreachableException {
         System.out.println("-------vcTest----------------");
@@ -593,10 +834,10 @@ class ChatTest {
                             else
                                 disc1Promise.complete((String) e.getOldValue());
                         },
-                        e -> {
-                            msg1List.add((StringMessage) ((MessageGUI) e.getNewValue()).message());
+                        e -> messagesOf(e).forEach(m -> {
+                            msg1List.add((StringMessage) m);
                             msg1.countDown();
-                        });
+                        }));
 
                 PeerNetManager p2 = new PeerNetManager(ID2, 12346, e -> chat2Promise.complete((ChatRoom) e.getNewValue()),
                         e -> {
@@ -742,10 +983,10 @@ class ChatTest {
                             else
                                 disc1Promise.complete((String) e.getOldValue());
                         },
-                        e -> {
-                            msg1List.add((StringMessage) ((MessageGUI) e.getNewValue()).message());
+                        e -> messagesOf(e).forEach(m -> {
+                            msg1List.add((StringMessage) m);
                             msg1.countDown();
-                        });
+                        }));
 
                 PeerNetManager p2 = new PeerNetManager(ID2, 12346, e -> chat2Promise.complete((ChatRoom) e.getNewValue()),
                         e -> {
@@ -892,10 +1133,10 @@ class ChatTest {
                             else
                                 disc1Promise.complete((String) e.getOldValue());
                         },
-                        e -> {
-                            msg1List.add((StringMessage) ((MessageGUI) e.getNewValue()).message());
+                        e -> messagesOf(e).forEach(m -> {
+                            msg1List.add((StringMessage) m);
                             msg1.countDown();
-                        });
+                        }));
 
                 PeerNetManager p2 = new PeerNetManager(ID2, 12346, e -> chat2Promise.complete((ChatRoom) e.getNewValue()),
                         e -> {
@@ -1431,6 +1672,15 @@ class ChatTest {
         }
     }
 
+    /**
+     * @return the messages delivered with an ADD_MSG or ADD_MSGS event
+     */
+    private static List<Message> messagesOf(PropertyChangeEvent e) {
+        if (e.getPropertyName().equals("ADD_MSGS"))
+            return ((List<?>) e.getNewValue()).stream().map(m -> ((MessageGUI) m).message()).toList();
+        return List.of(((MessageGUI) e.getNewValue()).message());
+    }
+
     private static void assertMessagePromiseEquals(CompletableFuture<StringMessage> msgPromise, String msg, String sender) throws ExecutionException, InterruptedException, TimeoutException {
         var m = msgPromise.get(500, TimeUnit.MILLISECONDS);
         assertMessageEquals(m, msg, sender);
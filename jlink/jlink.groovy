@@ -18,6 +18,7 @@ def distributions = [
 def launchers = [
         [name: "peer", mainClass: "it.polimi.peer.AppMain", winNoConsole: true],
         [name: "peer-console", mainClass: "it.polimi.peer.AppMain", winNoConsole: false],
+        [name: "peer-headless", mainClass: "it.polimi.peer.HeadlessMain", winNoConsole: false],
         [name: "discovery", mainClass: "it.polimi.discovery.MainServer", winNoConsole: false],
 ]
 
@@ -1,56 +1,126 @@
 package it.polimi.peer;
 
 import it.polimi.packets.p2p.CloseRoomPacket;
+import it.polimi.packets.p2p.Dissemination;
 import it.polimi.packets.p2p.MessagePacket;
+import it.polimi.packets.p2p.P2PPacket;
+import it.polimi.peer.events.EventBus;
 import it.polimi.peer.utility.ChatToBackup;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.beans.PropertyChangeListener;
 import java.io.*;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class BackupManager {
     private static final Logger LOGGER = LoggerFactory.getLogger(BackupManager.class);
 
     private static final String WAITING_FILENAME = "waitingMessages.dat";
     private static final String WAITING_CLOSE_FILENAME = "waitingCloseMessages.dat";
+    private static final String HISTORY_DIRNAME = "history";
+    private static final String OUTBOX_DIRNAME = "outbox";
+    private static final String OUTBOX_EXT = ".log";
     public static final String SAVE_DIR = STR."\{System.getProperty("user.home")}\{File.separator}HACOBackup\{File.separator}";
     private final String saveDirectory;
     private final String id;
-    private final PropertyChangeListener msgChangeListener;
+    private final EventBus events;
 
-    public BackupManager(String id, PropertyChangeListener msgChangeListener) {
+    public BackupManager(String id, EventBus events) {
         this.saveDirectory = SAVE_DIR + id + File.separator;
         this.id = id;
-        this.msgChangeListener = msgChangeListener;
+        this.events = events;
     }
 
-    public Set<ChatRoom> getChatsFromBackup() {
+    public RoomRegistry getChatsFromBackup() {
         var saveDir = new File(saveDirectory);
-        var files = saveDir.listFiles((_, name) -> !name.equals(WAITING_FILENAME) && !name.equals(WAITING_CLOSE_FILENAME));
-        Set<ChatRoom> tempChats = ConcurrentHashMap.newKeySet();
+        var files = saveDir.listFiles(f -> f.isFile() && !f.getName().equals(WAITING_FILENAME) && !f.getName().equals(WAITING_CLOSE_FILENAME));
+        RoomRegistry tempChats = new RoomRegistry();
 
         if (files == null)
             return tempChats;
 
-        for (File f : files) {
+        // Rooms are restored and indexed in parallel, reading the whole history of each one
+        Arrays.stream(files).parallel().forEach(f -> {
             try (FileInputStream fileInputStream = new FileInputStream(f);
                  ObjectInputStream objectInputStream = new ObjectInputStream(fileInputStream)) {
                 ChatToBackup tempChat = (ChatToBackup) objectInputStream.readObject();
-                tempChats.add(new ChatRoom(tempChat.name(), tempChat.users(), tempChat.id(), msgChangeListener,
-                        tempChat.vectorClocks(), tempChat.waiting(), tempChat.received()));
-            } catch (IOException | ClassNotFoundException e) {
+                ChatHistory history = new ChatHistory(historyDirectory(tempChat.id()), ChatHistory.DEFAULT_SEGMENT_SIZE, tempChat.archivedSegments());
+                history.appendAll(tempChat.received());
+                ChatRoom chat = new ChatRoom(tempChat.name(), tempChat.users(), tempChat.id(), events::publish,
+                        tempChat.vectorClocks(), tempChat.waiting(), history,
+                        Objects.requireNonNullElseGet(tempChat.dissemination(), Dissemination::direct));
+                chat.buildSearchIndex();
+                tempChats.add(chat);
+            } catch (IOException | ClassNotFoundException | UncheckedIOException e) {
                 LOGGER.error(STR."[\{this.id}] Error reading file \{f} from backup", e);
             }
-        }
+        });
         return tempChats;
     }
 
+    /**
+     * Create the history of a new chat, which archives its messages in the backup folder
+     *
+     * @param chatId id of the chat
+     * @return an empty history
+     */
+    public ChatHistory newHistory(UUID chatId) {
+        return new ChatHistory(historyDirectory(chatId), ChatHistory.DEFAULT_SEGMENT_SIZE, 0);
+    }
+
+    private Path historyDirectory(UUID chatId) {
+        return Paths.get(saveDirectory, HISTORY_DIRNAME, chatId.toString());
+    }
+
+    /**
+     * Open the outboxes left by the previous run which still contain packets, deleting the empty ones
+     *
+     * @return the outboxes, by id of the destination peer
+     */
+    public Map<String, Queue<P2PPacket>> getOutboxesFromBackup() {
+        var files = Paths.get(saveDirectory, OUTBOX_DIRNAME).toFile().listFiles(f -> f.isFile() && f.getName().endsWith(OUTBOX_EXT));
+        Map<String, Queue<P2PPacket>> res = new HashMap<>();
+        if (files == null)
+            return res;
+
+        for (File f : files) {
+            String peerId = f.getName().substring(0, f.getName().length() - OUTBOX_EXT.length());
+            try {
+                PeerOutbox outbox = new PeerOutbox(f.toPath());
+                if (outbox.isEmpty()) {
+                    outbox.close();
+                    outbox.delete();
+                } else {
+                    LOGGER.info(STR."[\{this.id}] Restored \{outbox.size()} packets for \{peerId}");
+                    res.put(peerId, outbox);
+                }
+            } catch (IOException e) {
+                LOGGER.error(STR."[\{this.id}] Error reading outbox \{f} from backup", e);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Create the outbox of the packets to send to a peer, stored in the backup folder.
+     * If it can't be created, the packets are only kept in memory
+     *
+     * @param peerId id of the destination peer
+     * @return an outbox, containing the packets left by the previous run if any
+     */
+    public Queue<P2PPacket> newOutbox(String peerId) {
+        try {
+            return new PeerOutbox(Paths.get(saveDirectory, OUTBOX_DIRNAME, peerId + OUTBOX_EXT));
+        } catch (IOException e) {
+            LOGGER.error(STR."[\{this.id}] Error creating outbox for \{peerId}, packets are kept in memory", e);
+            return new ConcurrentLinkedQueue<>();
+        }
+    }
+
     public Set<MessagePacket> getWaitingMessagesFromBackup() {
         var file = new File(saveDirectory + WAITING_FILENAME);
         Set<MessagePacket> res = new HashSet<>();
@@ -80,7 +150,7 @@ public class BackupManager {
         return res;
     }
 
-    public void backupChats(Set<ChatRoom> chats) {
+    public void backupChats(Collection<ChatRoom> chats) {
         //Create all save directories
         try {
             Files.createDirectories(Paths.get(saveDirectory));
@@ -88,6 +158,8 @@ public class BackupManager {
             LOGGER.error(STR."[\{this.id}] Error creating backup folder", e);
         }
         for (ChatRoom c : chats) {
+            // Stable messages are saved without their vector clocks
+            c.compactHistory();
             File backupFile = new File(STR."\{saveDirectory}\{c.getId()}.dat");
             try (FileOutputStream fileOutputStream = new FileOutputStream(backupFile);
                  ObjectOutputStream objectOutputStream = new ObjectOutputStream(fileOutputStream)) {
@@ -139,6 +211,7 @@ public class BackupManager {
         // If the file is not deleted it means that it wasn't backed up in the first place
         // We don't care for the deletion outcome
         chatToDelete.delete();
+        toDelete.getHistory().delete();
     }
 
 
@@ -0,0 +1,211 @@
+package it.polimi.peer;
+
+import it.polimi.messages.Message;
+
+import java.util.*;
+
+/**
+ * Buffer of messages which arrived out of causal order and are waiting for their predecessors.
+ * <p>
+ * Each waiting message keeps a counter of the dependencies it is still missing and is indexed
+ * by (user, clock the user needs to reach). When a message is delivered, only the waiting messages
+ * blocked on that (sender, clock) pair are woken up, so filling a gap costs O(unblocked messages)
+ * instead of rescanning the whole buffer.
+ * <p>
+ * The buffer holds at most a fixed number of messages, and keeps statistics about how long
+ * messages wait before being delivered.
+ * <p>
+ * This class is NOT thread-safe, it is guarded by the {@link ChatRoom} lock.
+ */
+class CausalBuffer {
+
+    private static final class Entry {
+        private final Message message;
+        private final long arrival;
+        private int missing;
+
+        private Entry(Message message) {
+            this.message = message;
+            this.arrival = System.nanoTime();
+        }
+    }
+
+    private final int maxSize;
+
+    /**
+     * Waiting messages by sender and sender clock, used to discard duplicates
+     */
+    private final Map<String, Map<Integer, Entry>> bySenderClock;
+    /**
+     * For each user, the waiting entries blocked until the user's clock reaches the key
+     */
+    private final Map<String, NavigableMap<Integer, List<Entry>>> blocked;
+    /**
+     * Entries whose dependencies are all satisfied, in the order they became ready
+     */
+    private final Deque<Entry> ready;
+    /**
+     * All the waiting messages, in arrival order
+     */
+    private final Map<Message, Entry> entries;
+    private long delivered;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+
+    /**
+     * @param maxSize max number of messages in the buffer
+     */
+    CausalBuffer(int maxSize) {
+        this.maxSize = maxSize;
+        this.bySenderClock = new HashMap<>();
+        this.blocked = new HashMap<>();
+        this.ready = new ArrayDeque<>();
+        this.entries = new LinkedHashMap<>();
+    }
+
+    /**
+     * Add a message to the buffer
+     *
+     * @param m           message which can't be delivered yet
+     * @param localClocks current vector clocks of the chat
+     * @return false if the same message was already waiting
+     */
+    boolean add(Message m, Map<String, Integer> localClocks) {
+        Integer senderClock = m.vectorClocks().get(m.sender());
+        if (senderClock == null)
+            return false;
+
+        var sameSender = bySenderClock.computeIfAbsent(m.sender(), _ -> new HashMap<>());
+        if (sameSender.containsKey(senderClock))
+            return false;
+
+        Entry e = new Entry(m);
+        sameSender.put(senderClock, e);
+        entries.put(m, e);
+
+        m.vectorClocks().forEach((user, clock) -> {
+            // The sender's own clock must be exactly one step ahead, the others must have already been seen
+            int needed = user.equals(m.sender()) ? clock - 1 : clock;
+            Integer local = localClocks.get(user);
+            if (local != null && local < needed) {
+                e.missing++;
+                blocked.computeIfAbsent(user, _ -> new TreeMap<>())
+                        .computeIfAbsent(needed, _ -> new ArrayList<>())
+                        .add(e);
+            }
+        });
+
+        if (e.missing == 0)
+            ready.add(e);
+        return true;
+    }
+
+    /**
+     * @param m a message
+     * @return true if a message with the same sender and sender clock is waiting
+     */
+    boolean contains(Message m) {
+        var sameSender = bySenderClock.get(m.sender());
+        return sameSender != null && sameSender.containsKey(m.vectorClocks().get(m.sender()));
+    }
+
+    /**
+     * Signal that the clock of the given user has advanced, waking up the messages
+     * which were waiting for it.
+     *
+     * @param user  user whose clock has changed
+     * @param clock new clock of the user
+     */
+    void advance(String user, int clock) {
+        var waitingOnUser = blocked.get(user);
+        if (waitingOnUser == null)
+            return;
+
+        var unblocked = waitingOnUser.headMap(clock, true);
+        for (List<Entry> entries : unblocked.values()) {
+            for (Entry e : entries) {
+                if (--e.missing == 0)
+                    ready.add(e);
+            }
+        }
+        unblocked.clear();
+    }
+
+    /**
+     * Remove and return a message which has all its dependencies satisfied
+     *
+     * @return the message or null if no message can be delivered
+     */
+    Message pollReady() {
+        Entry e = ready.poll();
+        if (e == null)
+            return null;
+
+        var sameSender = bySenderClock.get(e.message.sender());
+        sameSender.remove(e.message.vectorClocks().get(e.message.sender()));
+        if (sameSender.isEmpty())
+            bySenderClock.remove(e.message.sender());
+        entries.remove(e.message);
+
+        long wait = System.nanoTime() - e.arrival;
+        delivered++;
+        totalWaitNanos += wait;
+        maxWaitNanos = Math.max(maxWaitNanos, wait);
+        return e.message;
+    }
+
+    /**
+     * Returns the clocks needed by the messages which have been waiting since before the given instant.
+     * For each user, the missing messages are the ones after the local clock, up to the returned clock.
+     *
+     * @param arrivedBefore value of {@link System#nanoTime()}, only messages arrived before it are checked
+     * @param localClocks   current vector clocks of the chat
+     * @return for each user whose messages are missing, the highest clock needed
+     */
+    Map<String, Integer> missing(long arrivedBefore, Map<String, Integer> localClocks) {
+        Map<String, Integer> needed = new HashMap<>();
+        for (Entry e : entries.values()) {
+            if (e.arrival - arrivedBefore > 0)
+                break;
+            e.message.vectorClocks().forEach((user, clock) -> {
+                int n = user.equals(e.message.sender()) ? clock - 1 : clock;
+                Integer local = localClocks.get(user);
+                if (local != null && local < n)
+                    needed.merge(user, n, Math::max);
+            });
+        }
+        return needed;
+    }
+
+    Set<Message> messages() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    boolean isFull() {
+        return entries.size() >= maxSize;
+    }
+
+    long delivered() {
+        return delivered;
+    }
+
+    long totalWaitNanos() {
+        return totalWaitNanos;
+    }
+
+    long maxWaitNanos() {
+        return maxWaitNanos;
+    }
+
+    /**
+     * @return how long the oldest message has been waiting, in nanoseconds
+     */
+    long oldestWaitNanos() {
+        var iter = entries.values().iterator();
+        return iter.hasNext() ? System.nanoTime() - iter.next().arrival : 0;
+    }
+}
@@ -0,0 +1,431 @@
+package it.polimi.peer;
+
+import it.polimi.messages.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+
+/**
+ * Append-only history of the messages received by a chat.
+ * <p>
+ * The most recent messages are kept in memory (the tail); every time the tail reaches
+ * {@link #DEFAULT_SEGMENT_SIZE} messages it is sealed as an immutable segment, which is written to disk by a
+ * background writer and then dropped from memory, so appending never waits for the disk.
+ * Segments are paged in on demand when the history is read, and only the last {@link #CACHED_SEGMENTS}
+ * ones are kept in memory, so the resident memory of each chat is bounded.
+ * <p>
+ * If no directory is given, segments are kept in memory.
+ * <p>
+ * The history is a read-only collection, its iterator is weakly consistent.
+ * This class is thread-safe.
+ */
+public class ChatHistory extends AbstractCollection<Message> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChatHistory.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1000;
+    public static final int CACHED_SEGMENTS = 2;
+    private static final String SEGMENT_EXT = ".seg";
+    /**
+     * Writes the sealed segments of all the histories, outside their locks
+     */
+    private static final ExecutorService SEGMENT_WRITER =
+            Executors.newSingleThreadExecutor(Thread.ofPlatform().name("history-writer").daemon().factory());
+
+    /**
+     * Messages to be saved in a backup, the other ones are already on disk
+     *
+     * @param archivedSegments number of segments already written
+     * @param messages         messages in the tail
+     */
+    public record Tail(int archivedSegments, List<Message> messages) {
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final ReadWriteLock lock;
+    private final List<Message> tail;
+    /**
+     * Segments which are only in memory: all of them if there is no directory, otherwise the ones
+     * not written yet or which couldn't be written
+     */
+    private final Map<Integer, List<Message>> pinnedSegments;
+    private final Map<Integer, List<Message>> cachedSegments;
+    private int archivedSegments;
+    /**
+     * Messages before this position are either compacted or already written on disk
+     */
+    private int firstUncompacted;
+    /**
+     * Completed when all the sealed segments have been written
+     */
+    private CompletableFuture<Void> pendingWrites;
+
+    /**
+     * Create an in-memory history
+     */
+    public ChatHistory() {
+        this(null, DEFAULT_SEGMENT_SIZE, 0);
+    }
+
+    /**
+     * Create a history which stores its segments in the given directory
+     *
+     * @param directory        where segments are written
+     * @param segmentSize      number of messages of each segment
+     * @param archivedSegments number of segments already present in the directory
+     */
+    public ChatHistory(Path directory, int segmentSize, int archivedSegments) {
+        if (segmentSize <= 0)
+            throw new IllegalArgumentException("Invalid segment size");
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.archivedSegments = archivedSegments;
+        this.firstUncompacted = archivedSegments * segmentSize;
+        this.lock = new ReentrantReadWriteLock();
+        this.tail = new ArrayList<>();
+        this.pinnedSegments = new HashMap<>();
+        this.pendingWrites = CompletableFuture.completedFuture(null);
+        this.cachedSegments = new LinkedHashMap<>(CACHED_SEGMENTS, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, List<Message>> eldest) {
+                return size() > CACHED_SEGMENTS;
+            }
+        };
+    }
+
+    /**
+     * Append a message at the end of the history, archiving the tail if it is full
+     *
+     * @param m message to add
+     */
+    public void append(Message m) {
+        lock.writeLock().lock();
+        try {
+            tail.add(m);
+            if (tail.size() >= segmentSize)
+                archiveTail();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Append all the messages at the end of the history
+     *
+     * @param msgs messages to add
+     */
+    public void appendAll(Collection<? extends Message> msgs) {
+        lock.writeLock().lock();
+        try {
+            for (Message m : msgs) {
+                tail.add(m);
+                if (tail.size() >= segmentSize)
+                    archiveTail();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param index position of the message
+     * @return the message at the given position
+     * @throws IndexOutOfBoundsException if the index is not in the history
+     */
+    public Message get(int index) {
+        lock.readLock().lock();
+        try {
+            Objects.checkIndex(index, sizeUnlocked());
+            int segment = index / segmentSize;
+            if (segment == archivedSegments)
+                return tail.get(index % segmentSize);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return segment(index / segmentSize).get(index % segmentSize);
+    }
+
+    /**
+     * Get a page of the history, reading from disk only the segments it spans.
+     * <p>
+     * A page contained in a single archived segment is a view of the segment, otherwise only the
+     * messages of the page are copied.
+     *
+     * @param from  position of the first message
+     * @param limit max number of messages
+     * @return a read-only list of at most {@code limit} messages, starting from the given position
+     * @throws IndexOutOfBoundsException if {@code from} is negative or greater than the size of the history
+     */
+    public List<Message> page(int from, int limit) {
+        if (limit < 0)
+            throw new IllegalArgumentException("Invalid limit");
+
+        int archivedTo;
+        List<Message> fromTail;
+        lock.readLock().lock();
+        try {
+            int size = sizeUnlocked();
+            Objects.checkIndex(from, size + 1);
+            int to = (int) Math.min((long) from + limit, size);
+            int tailStart = archivedSegments * segmentSize;
+            fromTail = to > tailStart ? List.copyOf(tail.subList(Math.max(from, tailStart) - tailStart, to - tailStart)) : List.of();
+            archivedTo = Math.min(to, tailStart);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        // Archived segments are read without holding the lock, they don't change once written
+        List<List<Message>> parts = new ArrayList<>();
+        for (int i = from; i < archivedTo; ) {
+            int segIdx = i / segmentSize;
+            int end = Math.min(archivedTo, (segIdx + 1) * segmentSize);
+            parts.add(segment(segIdx).subList(i % segmentSize, end - segIdx * segmentSize));
+            i = end;
+        }
+        if (parts.isEmpty())
+            return fromTail;
+        if (parts.size() == 1 && fromTail.isEmpty())
+            return Collections.unmodifiableList(parts.getFirst());
+
+        List<Message> page = new ArrayList<>();
+        parts.forEach(page::addAll);
+        page.addAll(fromTail);
+        return Collections.unmodifiableList(page);
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return sizeUnlocked();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Iterator<Message> iterator() {
+        return new Iterator<>() {
+            private int next = 0;
+            private List<Message> segment = null;
+            private int segmentIdx = -1;
+
+            @Override
+            public boolean hasNext() {
+                return next < size();
+            }
+
+            @Override
+            public Message next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+
+                int segIdx = next / segmentSize;
+                Message m;
+                if (segIdx == segmentIdx) {
+                    m = segment.get(next % segmentSize);
+                } else {
+                    lock.readLock().lock();
+                    try {
+                        m = segIdx == archivedSegments ? tail.get(next % segmentSize) : null;
+                    } finally {
+                        lock.readLock().unlock();
+                    }
+                    if (m == null) {
+                        // Keep a reference to the archived segment, so it is loaded only once
+                        segment = segment(segIdx);
+                        segmentIdx = segIdx;
+                        m = segment.get(next % segmentSize);
+                    }
+                }
+                next++;
+                return m;
+            }
+        };
+    }
+
+    /**
+     * @return the messages which are not yet on disk and the number of segments on disk before them
+     */
+    public Tail tail() {
+        lock.readLock().lock();
+        try {
+            // Segments which are only in memory must be saved with the tail
+            int archived = pinnedSegments.keySet().stream().min(Integer::compare).orElse(archivedSegments);
+            List<Message> msgs = new ArrayList<>();
+            for (int i = archived; i < archivedSegments; i++)
+                msgs.addAll(segment(i));
+            msgs.addAll(tail);
+            return new Tail(archived, msgs);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Replace the messages which are still in memory with their compacted version.
+     * Segments already written on disk are never rewritten.
+     *
+     * @param compactor returns the compacted version of a message, or the message itself if it can't be compacted yet
+     */
+    public void compact(UnaryOperator<Message> compactor) {
+        lock.writeLock().lock();
+        try {
+            int size = sizeUnlocked();
+            boolean prefixCompacted = true;
+            for (int i = firstUncompacted; i < size; i++) {
+                int segIdx = i / segmentSize;
+                List<Message> segment = segIdx == archivedSegments ? tail : pinnedSegments.get(segIdx);
+                if (segment == null) {
+                    // On disk, skip the whole segment
+                    i = (segIdx + 1) * segmentSize - 1;
+                } else {
+                    Message m = segment.get(i % segmentSize);
+                    Message compacted = compactor.apply(m);
+                    if (compacted != m)
+                        segment.set(i % segmentSize, compacted);
+                    else if (compacted.vectorClocks().size() > 1)
+                        prefixCompacted = false;
+                }
+                if (prefixCompacted)
+                    firstUncompacted = i + 1;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Wait until all the sealed segments have been written to disk (or kept in memory, if they couldn't be written)
+     */
+    public void flush() {
+        CompletableFuture<Void> writes;
+        lock.readLock().lock();
+        try {
+            writes = pendingWrites;
+        } finally {
+            lock.readLock().unlock();
+        }
+        writes.join();
+    }
+
+    /**
+     * Delete all the segments from disk
+     */
+    public void delete() {
+        // Don't let a pending write recreate the directory
+        flush();
+        if (directory == null || !Files.exists(directory))
+            return;
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path f : files.toList())
+                Files.deleteIfExists(f);
+            Files.deleteIfExists(directory);
+        } catch (IOException e) {
+            LOGGER.error(STR."Error deleting history \{directory}", e);
+        }
+    }
+
+    private int sizeUnlocked() {
+        return archivedSegments * segmentSize + tail.size();
+    }
+
+    /**
+     * Seal the tail as a new segment, which is written to disk by the background writer.
+     * Must be called holding the write lock
+     */
+    private void archiveTail() {
+        int idx = archivedSegments;
+        // Until it is written the segment is pinned, so it is still readable, compacted and saved with the tail
+        pinnedSegments.put(idx, new ArrayList<>(tail));
+        if (directory != null)
+            pendingWrites = pendingWrites.thenRunAsync(() -> writeSegment(idx), SEGMENT_WRITER);
+        archivedSegments++;
+        tail.clear();
+    }
+
+    /**
+     * Write a sealed segment to disk and unpin it, or keep it pinned if it can't be written
+     *
+     * @param idx index of the segment
+     */
+    private void writeSegment(int idx) {
+        List<Message> segment;
+        lock.readLock().lock();
+        try {
+            segment = List.copyOf(pinnedSegments.get(idx));
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        try {
+            Files.createDirectories(directory);
+            try (FileOutputStream fileOutputStream = new FileOutputStream(segmentFile(idx).toFile());
+                 ObjectOutputStream objectOutputStream = new ObjectOutputStream(new BufferedOutputStream(fileOutputStream))) {
+                objectOutputStream.writeObject(new ArrayList<>(segment));
+            }
+        } catch (IOException e) {
+            LOGGER.error(STR."Error writing segment \{idx} of \{directory}, keeping it in memory", e);
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            synchronized (cachedSegments) {
+                cachedSegments.put(idx, segment);
+            }
+            pinnedSegments.remove(idx);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get an archived segment, reading it from disk if it is not in memory
+     *
+     * @param idx index of the segment
+     * @return the messages of the segment
+     */
+    @SuppressWarnings("unchecked")
+    private List<Message> segment(int idx) {
+        lock.readLock().lock();
+        try {
+            var pinned = pinnedSegments.get(idx);
+            if (pinned != null)
+                return pinned;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        synchronized (cachedSegments) {
+            var cached = cachedSegments.get(idx);
+            if (cached != null)
+                return cached;
+
+            try (FileInputStream fileInputStream = new FileInputStream(segmentFile(idx).toFile());
+                 ObjectInputStream objectInputStream = new ObjectInputStream(new BufferedInputStream(fileInputStream))) {
+                List<Message> segment = List.copyOf((List<Message>) objectInputStream.readObject());
+                cachedSegments.put(idx, segment);
+                return segment;
+            } catch (IOException | ClassNotFoundException e) {
+                throw new UncheckedIOException(new IOException(STR."Error reading segment \{idx} of \{directory}", e));
+            }
+        }
+    }
+
+    private Path segmentFile(int idx) {
+        return directory.resolve(idx + SEGMENT_EXT);
+    }
+}
@@ -2,78 +2,207 @@ package it.polimi.peer;
 
 import it.polimi.messages.CloseMessage;
 import it.polimi.messages.Message;
+import it.polimi.messages.MessageId;
 import it.polimi.messages.StringMessage;
-import it.polimi.peer.utility.MessageGUI;
+import it.polimi.packets.p2p.Dissemination;
+import it.polimi.peer.events.MessagesAdded;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.beans.PropertyChangeListener;
-import java.beans.PropertyChangeSupport;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 public class ChatRoom {
     private static final Logger LOGGER = LoggerFactory.getLogger(ChatRoom.class);
+    /**
+     * Number of delivered messages after which the stable messages of the history are compacted
+     */
+    static final int COMPACTION_INTERVAL = 64;
+    /**
+     * Max number of messages in the waiting list, messages arriving when it is full are dropped
+     * and requested again later
+     */
+    static final int MAX_WAITING_MESSAGES = 10_000;
+
+    /**
+     * Immutable snapshot of the state of the chat, published after every change
+     *
+     * @param version      increased by one at every change
+     * @param vectorClocks vector clocks of the chat
+     * @param closed       whether the chat has been closed
+     */
+    public record State(long version, Map<String, Integer> vectorClocks, boolean closed) {
+    }
+
+    /**
+     * Statistics of the waiting list
+     *
+     * @param waiting    number of messages currently waiting
+     * @param oldestWait how long the oldest waiting message has been waiting
+     * @param delivered  number of messages delivered after waiting
+     * @param totalWait  total time waited by the delivered messages
+     * @param maxWait    longest time waited by a delivered message
+     */
+    public record WaitingStats(int waiting, Duration oldestWait, long delivered, Duration totalWait, Duration maxWait) {
+        public Duration averageWait() {
+            return delivered == 0 ? Duration.ZERO : totalWait.dividedBy(delivered);
+        }
+    }
 
     private final Set<String> users;
-    private final Set<Message> waitingMessages;
-    private final Queue<Message> receivedMsgs;
+    private final CausalBuffer waitingMessages;
+    /**
+     * For each user, the highest clock needed by the messages dropped because the waiting list was full.
+     * Their senders won't send them again, so they are requested with the missing predecessors
+     */
+    private final Map<String, Integer> droppedClocks;
+    private final ChatHistory receivedMsgs;
+    private final SearchIndex searchIndex;
+    private final HistoryPublisher historyPublisher;
     private final Map<String, Integer> vectorClocks;
-    private final PropertyChangeSupport msgChangeSupport;
+    /**
+     * For each user, the most recent vector clocks observed in one of its messages: the user has
+     * delivered at least the messages they cover
+     */
+    private final Map<String, Map<String, Integer>> observedClocks;
+    private int deliveredSinceCompaction;
+    private final Consumer<? super MessagesAdded> msgListener;
     private final String name;
     private final UUID id;
+    private final Dissemination dissemination;
+    /**
+     * Tree of the members, null unless the messages are disseminated along a tree
+     */
+    private final RelayTree relayTree;
     private final Lock pushLock;
-    private Boolean closed;
+    private boolean closed;
+    private volatile State state;
+    /**
+     * Events generated while holding the {@link #pushLock}, in causal order, which still have to be fired
+     */
+    private final Queue<MessagesAdded> pendingEvents;
+    private final AtomicBoolean dispatching;
+    /**
+     * Messages delivered by the current {@link #addMessages(Collection)}, null if no batch is in progress
+     */
+    private List<Message> deliveredBatch;
 
     public ChatRoom(String name,
                     Set<String> users,
-                    PropertyChangeListener msgChangeListener) {
-        this(name, users, UUID.randomUUID(), msgChangeListener);
+                    Consumer<? super MessagesAdded> msgListener) {
+        this(name, users, UUID.randomUUID(), msgListener);
     }
 
     public ChatRoom(String name,
                     Set<String> users,
                     UUID id,
-                    PropertyChangeListener msgChangeListener) {
-        this.name = name;
-        this.users = Set.copyOf(users);
-        this.id = id;
-        this.pushLock = new ReentrantLock();
-        this.waitingMessages = new LinkedHashSet<>();
-        this.closed = false;
+                    Consumer<? super MessagesAdded> msgListener) {
+        this(name, users, id, msgListener, new ChatHistory());
+    }
 
-        vectorClocks = new HashMap<>();
-        for (String user : users) {
-            vectorClocks.put(user, 0);
-        }
-        receivedMsgs = new ConcurrentLinkedQueue<>();
-        msgChangeSupport = new PropertyChangeSupport(receivedMsgs);
-        msgChangeSupport.addPropertyChangeListener(msgChangeListener);
+    /**
+     * Create a new empty chat, storing its messages in the given history
+     *
+     * @param history where received messages are stored
+     */
+    public ChatRoom(String name,
+                    Set<String> users,
+                    UUID id,
+                    Consumer<? super MessagesAdded> msgListener,
+                    ChatHistory history) {
+        this(name, users, id, msgListener, history, Dissemination.direct());
+    }
+
+    /**
+     * Create a new empty chat, storing its messages in the given history
+     *
+     * @param history       where received messages are stored
+     * @param dissemination how the messages are disseminated to the members
+     */
+    public ChatRoom(String name,
+                    Set<String> users,
+                    UUID id,
+                    Consumer<? super MessagesAdded> msgListener,
+                    ChatHistory history,
+                    Dissemination dissemination) {
+        this(name, users, id, msgListener, initialClocks(users), Set.of(), history, dissemination);
     }
 
     public ChatRoom(String name,
                     Set<String> users,
                     UUID id,
-                    PropertyChangeListener msgChangeListener,
+                    Consumer<? super MessagesAdded> msgListener,
                     Map<String, Integer> vectorClocks,
                     Set<Message> waiting,
                     Collection<Message> messages) {
+        this(name, users, id, msgListener, vectorClocks, waiting, new ChatHistory());
+        this.receivedMsgs.appendAll(messages);
+    }
+
+    public ChatRoom(String name,
+                    Set<String> users,
+                    UUID id,
+                    Consumer<? super MessagesAdded> msgListener,
+                    Map<String, Integer> vectorClocks,
+                    Set<Message> waiting,
+                    ChatHistory history) {
+        this(name, users, id, msgListener, vectorClocks, waiting, history, Dissemination.direct());
+    }
+
+    /**
+     * Create a chat restored from a backup
+     *
+     * @param vectorClocks  vector clocks of the chat
+     * @param waiting       messages waiting to be delivered
+     * @param history       history of the chat, containing all the messages already received
+     * @param dissemination how the messages are disseminated to the members
+     */
+    public ChatRoom(String name,
+                    Set<String> users,
+                    UUID id,
+                    Consumer<? super MessagesAdded> msgListener,
+                    Map<String, Integer> vectorClocks,
+                    Set<Message> waiting,
+                    ChatHistory history,
+                    Dissemination dissemination) {
         this.name = name;
+        this.dissemination = Objects.requireNonNull(dissemination);
         this.users = Set.copyOf(users);
+        this.relayTree = dissemination.strategy() == Dissemination.Strategy.TREE
+                ? new RelayTree(this.users, dissemination.fanout())
+                : null;
         this.id = id;
         this.pushLock = new ReentrantLock();
-        this.waitingMessages = new LinkedHashSet<>(waiting);
+        this.waitingMessages = new CausalBuffer(MAX_WAITING_MESSAGES);
+        this.droppedClocks = new HashMap<>();
         this.closed = false;
 
         this.vectorClocks = new HashMap<>(vectorClocks);
-        this.receivedMsgs = new ConcurrentLinkedQueue<>(messages);
-
-        msgChangeSupport = new PropertyChangeSupport(receivedMsgs);
-        msgChangeSupport.addPropertyChangeListener(msgChangeListener);
+        this.observedClocks = new HashMap<>();
+        waiting.forEach(this::addWaiting);
+        this.receivedMsgs = history;
+        this.searchIndex = new SearchIndex();
+        this.historyPublisher = new HistoryPublisher(history, () -> state.closed());
+
+        this.msgListener = msgListener;
+        pendingEvents = new ConcurrentLinkedQueue<>();
+        dispatching = new AtomicBoolean();
+        state = new State(0, Map.copyOf(this.vectorClocks), false);
     }
 
+    private static Map<String, Integer> initialClocks(Set<String> users) {
+        Map<String, Integer> clocks = new HashMap<>();
+        for (String user : users) {
+            clocks.put(user, 0);
+        }
+        return clocks;
+    }
 
     public UUID getId() {
         return id;
@@ -83,8 +212,47 @@ public class ChatRoom {
         return name;
     }
 
+    /**
+     * @return how the messages are disseminated to the members
+     */
+    public Dissemination getDissemination() {
+        return dissemination;
+    }
+
+    /**
+     * @return the tree of the members, null unless the strategy is {@link Dissemination.Strategy#TREE}
+     */
+    RelayTree getRelayTree() {
+        return relayTree;
+    }
+
+    /**
+     * @param m a message of this chat
+     * @return true if the message has already been delivered or is waiting to be delivered
+     */
+    public boolean hasReceived(Message m) {
+        try {
+            pushLock.lock();
+            Integer local = vectorClocks.get(m.sender());
+            Integer clock = m.vectorClocks().get(m.sender());
+            return local != null && clock != null && clock <= local || waitingMessages.contains(m);
+        } finally {
+            pushLock.unlock();
+        }
+    }
+
     public Boolean isClosed() {
-        return closed;
+        return state.closed();
+    }
+
+    /**
+     * Returns the last published state of the chat.
+     * This method never blocks, the returned snapshot is immutable and can be freely shared.
+     *
+     * @return the state of the chat
+     */
+    public State getState() {
+        return state;
     }
 
     /**
@@ -100,11 +268,15 @@ public class ChatRoom {
             pushLock.lock();
             increaseVC(sender);
             StringMessage m = new StringMessage(msg, Map.copyOf(vectorClocks), sender);
-            receivedMsgs.add(m);
-            msgChangeSupport.firePropertyChange("ADD_MSG", null, new MessageGUI(m, this));
+            observe(m);
+            receivedMsgs.append(m);
+            searchIndex.add(m);
+            publishState(m.vectorClocks());
+            notifyDelivered(m);
             return m;
         } finally {
             pushLock.unlock();
+            dispatchEvents();
         }
     }
 
@@ -121,15 +293,11 @@ public class ChatRoom {
             switch (checkVC(m.vectorClocks())) {
                 //Accept message
                 case 1:
-                    //Increase the PID of the message sender
-                    vectorClocks.put(m.sender(), m.vectorClocks().get(m.sender()));
-
-                    receivedMsgs.add(m);
-
-                    msgChangeSupport.firePropertyChange("ADD_MSG", null, new MessageGUI(m, this));
+                    deliver(m);
 
                     //Check the message queue to see if we can accept any other message
                     checkWaiting();
+                    publishState(Map.copyOf(vectorClocks));
                     break;
                 //Message already received
                 case 0:
@@ -139,43 +307,170 @@ public class ChatRoom {
                 //Message can't be accepted (arrived out of order)
                 case -1:
                     //puts the message in a queue
-                    LOGGER.info(STR."[\{id}] Message \{m.vectorClocks()} added in waiting list");
-                    waitingMessages.add(m);
+                    addWaiting(m);
             }
         } catch (Throwable t) {
             LOGGER.error(STR."[\{id}] Unexpected error adding message \{m} to chat \{id} (\{name})", t);
         } finally {
             pushLock.unlock();
+            dispatchEvents();
         }
     }
 
     /**
-     * After a message has been accepted checks for all messages enqueued if any other one can be popped.
-     * Check recursively until a cycle in which no messages are popped
+     * Add a batch of messages, e.g. the backlog received after a reconnection.
+     * <p>
+     * The lock is taken only once and the messages are processed in an order compatible with causality
+     * (by sum of their vector clocks, then by sender clock), so that most of them are delivered immediately
+     * instead of going through the waiting list.
+     * A single {@link MessagesAdded} event is fired with the list of all the delivered messages, in delivery order.
+     *
+     * @param msgs messages received
      */
-    private void checkWaiting() {
-        boolean added;
-        do {
-            added = false;
-            var iter = waitingMessages.iterator();
-            while (iter.hasNext()) {
-                Message m = iter.next();
-                if (checkVC(m.vectorClocks()) == 1) {
-                    //Increase the PID of the message sender
-                    vectorClocks.put(m.sender(), m.vectorClocks().get(m.sender()));
+    public void addMessages(Collection<StringMessage> msgs) {
+        // Sum of the vector clocks: if a message causally precedes another one, its sum is lower
+        Map<StringMessage, Long> causalRank = new HashMap<>();
+        for (StringMessage m : msgs) {
+            long sum = 0;
+            for (int c : m.vectorClocks().values())
+                sum += c;
+            causalRank.put(m, sum);
+        }
+        List<StringMessage> sorted = new ArrayList<>(causalRank.keySet());
+        sorted.sort(Comparator.<StringMessage>comparingLong(causalRank::get)
+                .thenComparingInt(m -> m.vectorClocks().get(m.sender())));
+        try {
+            pushLock.lock();
+            deliveredBatch = new ArrayList<>();
+            for (StringMessage m : sorted) {
+                try {
+                    switch (checkVC(m.vectorClocks())) {
+                        case 1 -> {
+                            deliver(m);
+                            checkWaiting();
+                        }
+                        case 0 -> LOGGER.info(STR."[\{id}] Ignoring duplicated message \{m.vectorClocks()}");
+                        default -> addWaiting(m);
+                    }
+                } catch (RuntimeException ex) {
+                    LOGGER.error(STR."[\{id}] Unexpected error adding message \{m} to chat \{id} (\{name})", ex);
+                }
+            }
 
-                    LOGGER.info(STR."[\{this.id}] Removing message \{m.vectorClocks()} from waiting list");
+            if (!deliveredBatch.isEmpty()) {
+                publishState(Map.copyOf(vectorClocks));
+                pendingEvents.add(new MessagesAdded(this, deliveredBatch));
+            }
+        } finally {
+            deliveredBatch = null;
+            pushLock.unlock();
+            dispatchEvents();
+        }
+    }
+
+    /**
+     * Deliver a message which is in causal order: update the vector clocks, add it to the
+     * received messages and notify the listener
+     *
+     * @param m message to deliver
+     */
+    private void deliver(Message m) {
+        int senderClock = m.vectorClocks().get(m.sender());
+        //Increase the PID of the message sender
+        vectorClocks.put(m.sender(), senderClock);
+        observe(m);
+
+        if (m instanceof CloseMessage cm) {
+            LOGGER.info(STR."Closing room \{name} \{id}");
+            localClose(cm);
+        } else {
+            receivedMsgs.append(m);
+            if (m instanceof StringMessage sm)
+                searchIndex.add(sm);
+            notifyDelivered(m);
+        }
+        waitingMessages.advance(m.sender(), senderClock);
 
-                    receivedMsgs.add(m);
-                    msgChangeSupport.firePropertyChange("ADD_MSG", null, new MessageGUI(m, this));
+        if (++deliveredSinceCompaction >= COMPACTION_INTERVAL)
+            compactStable();
+    }
 
-                    added = true;
+    /**
+     * Record that the sender of the message has delivered all the messages covered by its vector clocks
+     *
+     * @param m message sent or delivered
+     */
+    private void observe(Message m) {
+        var observed = observedClocks.computeIfAbsent(m.sender(), _ -> new HashMap<>());
+        m.vectorClocks().forEach((user, clock) -> observed.merge(user, clock, Math::max));
+    }
 
-                    //Remove the message from the queue
-                    iter.remove();
-                }
+    /**
+     * Returns the causally stable frontier of the chat: for each user, the clock up to which
+     * its messages are known to have been delivered by every member.
+     * Users who have never been observed are assumed to have delivered nothing.
+     * Must be called while holding the {@link #pushLock}.
+     *
+     * @return the stable vector clocks
+     */
+    private Map<String, Integer> stableClocks() {
+        Map<String, Integer> stable = new HashMap<>();
+        for (String u : users) {
+            int min = vectorClocks.get(u);
+            for (String member : users) {
+                var observed = observedClocks.get(member);
+                min = Math.min(min, observed == null ? 0 : observed.getOrDefault(u, 0));
+            }
+            stable.put(u, min);
+        }
+        return stable;
+    }
+
+    /**
+     * Replace the stable messages of the history with their compacted version.
+     * Must be called while holding the {@link #pushLock}.
+     */
+    private void compactStable() {
+        deliveredSinceCompaction = 0;
+        var stable = stableClocks();
+        receivedMsgs.compact(m -> m.vectorClocks().get(m.sender()) <= stable.get(m.sender()) ? m.compact() : m);
+    }
+
+    /**
+     * Put a message which arrived out of order in the waiting list, unless the list is full.
+     * A dropped message is recorded in the {@link #droppedClocks}, together with its missing predecessors.
+     * Must be called while holding the {@link #pushLock}
+     *
+     * @param m message to add
+     */
+    private void addWaiting(Message m) {
+        if (waitingMessages.isFull()) {
+            LOGGER.warn(STR."[\{id}] Waiting list full, dropping message \{m.vectorClocks()}");
+            m.vectorClocks().forEach((user, clock) -> {
+                Integer local = vectorClocks.get(user);
+                if (local != null && local < clock)
+                    droppedClocks.merge(user, clock, Math::max);
+            });
+        } else if (waitingMessages.add(m, vectorClocks))
+            LOGGER.info(STR."[\{id}] Message \{m.vectorClocks()} added in waiting list");
+    }
+
+    /**
+     * After a message has been accepted checks for all messages enqueued if any other one can be popped.
+     * Only the messages which were waiting for one of the delivered messages are checked, until no more
+     * messages are unblocked
+     */
+    private void checkWaiting() {
+        Message m;
+        while ((m = waitingMessages.pollReady()) != null) {
+            // All dependencies are satisfied, so the message is either in order or a duplicate
+            if (checkVC(m.vectorClocks()) == 1) {
+                LOGGER.info(STR."[\{this.id}] Removing message \{m.vectorClocks()} from waiting list");
+                deliver(m);
+            } else {
+                LOGGER.info(STR."[\{this.id}] Ignoring duplicated waiting message \{m.vectorClocks()}");
             }
-        } while (added);
+        }
     }
 
     public Set<String> getUsers() {
@@ -194,15 +489,16 @@ public class ChatRoom {
      * E.G. I have 2.0.1 and receive packet 1.0.1
      */
     private int checkVC(Map<String, Integer> vc) {
-        Map<String, Integer> newClocks = Map.copyOf(vc);
         boolean senderFound = false;
         //Cycle through all users
         for (String u : users) {
+            int newClock = vc.get(u);
+            int localClock = vectorClocks.get(u);
             //If user's PID is increased by one from the one I have, and it's the first time this happens, then ok
-            if ((newClocks.get(u) == vectorClocks.get(u) + 1 && !senderFound)) {
+            if ((newClock == localClock + 1 && !senderFound)) {
                 senderFound = true;
                 //If user's PID is greater than expected, or if I find another PID greater than one of the ones I have, then put the message in a queue
-            } else if ((newClocks.get(u) > vectorClocks.get(u))) {
+            } else if ((newClock > localClock)) {
                 return -1;
             }
         }
@@ -224,30 +520,124 @@ public class ChatRoom {
             switch (c) {
                 // Can be accepted
                 case 1:
-                    vectorClocks.put(cm.sender(), cm.vectorClocks().get(cm.sender()));
-                    closed = true;
-                    LOGGER.info(STR."Closing room \{name} \{id}");
-                    localClose(cm);
+                    deliver(cm);
+                    checkWaiting();
+                    publishState(Map.copyOf(vectorClocks));
                     break;
                 case -1:
-                    waitingMessages.add(cm);
-                    LOGGER.info(STR."[\{id}] Close message \{cm.vectorClocks()} added in waiting list");
+                    addWaiting(cm);
                     break;
                 default:
                     // The default case is 0, so the packet has already been accepted and parsed
                     LOGGER.info(STR."[\{id}] Ignoring duplicated close message \{cm.vectorClocks()}");
             }
+        } finally {
+            pushLock.unlock();
+            dispatchEvents();
+        }
+    }
+
+    /**
+     * @return the causally stable frontier of the chat, messages before it don't need their vector clocks anymore
+     */
+    public Map<String, Integer> getStableClocks() {
+        try {
+            pushLock.lock();
+            return Map.copyOf(stableClocks());
+        } finally {
+            pushLock.unlock();
+        }
+    }
+
+    /**
+     * Drop the vector clocks of the messages which have become stable, e.g. before saving a backup
+     */
+    public void compactHistory() {
+        try {
+            pushLock.lock();
+            compactStable();
+        } finally {
+            pushLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the received messages which are not covered by the given vector clocks, in delivery order.
+     * <p>
+     * The history is scanned backwards, stopping as soon as the messages of every user are covered,
+     * so only the recent part of the history is read.
+     *
+     * @param clocks vector clocks of another member of the chat
+     * @return the messages the other member is missing
+     */
+    public List<Message> getMissingMessages(Map<String, Integer> clocks) {
+        var vc = state.vectorClocks();
+        Set<String> uncovered = new HashSet<>();
+        vc.forEach((user, clock) -> {
+            if (clock > clocks.getOrDefault(user, 0))
+                uncovered.add(user);
+        });
+
+        List<Message> missing = new ArrayList<>();
+        for (int i = receivedMsgs.size() - 1; i >= 0 && !uncovered.isEmpty(); i--) {
+            Message m = receivedMsgs.get(i);
+            if (!uncovered.contains(m.sender()))
+                continue;
+            if (m.id().clock() > clocks.getOrDefault(m.sender(), 0))
+                missing.add(m);
+            else
+                uncovered.remove(m.sender());
+        }
+        return missing.reversed();
+    }
+
+    /**
+     * Returns the messages which are missing for the messages waiting for more than the given time.
+     * For each user, the missing messages are the ones after the local clock, up to the returned clock.
+     * Messages dropped because the waiting list was full are always included, until they are delivered.
+     *
+     * @param threshold minimum time a message must have been waiting for
+     * @return for each user whose messages are missing, the highest clock needed
+     */
+    public Map<String, Integer> getMissingPredecessors(Duration threshold) {
+        try {
+            pushLock.lock();
+            var needed = waitingMessages.missing(System.nanoTime() - threshold.toNanos(), vectorClocks);
+            droppedClocks.entrySet().removeIf(e -> vectorClocks.get(e.getKey()) >= e.getValue());
+            droppedClocks.forEach((user, clock) -> needed.merge(user, clock, Math::max));
+            return needed;
+        } finally {
+            pushLock.unlock();
+        }
+    }
+
+    public WaitingStats getWaitingStats() {
+        try {
+            pushLock.lock();
+            return new WaitingStats(waitingMessages.size(),
+                    Duration.ofNanos(waitingMessages.oldestWaitNanos()),
+                    waitingMessages.delivered(),
+                    Duration.ofNanos(waitingMessages.totalWaitNanos()),
+                    Duration.ofNanos(waitingMessages.maxWaitNanos()));
         } finally {
             pushLock.unlock();
         }
     }
 
     public Set<Message> getWaitingMessages() {
-        return Set.copyOf(waitingMessages);
+        try {
+            pushLock.lock();
+            return Set.copyOf(waitingMessages.messages());
+        } finally {
+            pushLock.unlock();
+        }
     }
 
+    /**
+     * @return an immutable snapshot of the vector clocks (see {@link #getState()})
+     */
     public Map<String, Integer> getVectorClocks() {
-        return Collections.unmodifiableMap(vectorClocks);
+        return state.vectorClocks();
     }
 
     @Override
@@ -255,15 +645,113 @@ public class ChatRoom {
         return name;
     }
 
+    /**
+     * @return a read-only view of the received messages, archived messages are paged in while iterating
+     */
     public Collection<Message> getReceivedMsgs() {
-        return Collections.unmodifiableCollection(receivedMsgs);
+        return receivedMsgs;
+    }
+
+    public ChatHistory getHistory() {
+        return receivedMsgs;
+    }
+
+    /**
+     * @param from  position of the first message
+     * @param limit max number of messages
+     * @return a read-only list of at most {@code limit} received messages, starting from the given position
+     * @see ChatHistory#page(int, int)
+     */
+    public List<Message> page(int from, int limit) {
+        return receivedMsgs.page(from, limit);
+    }
+
+    /**
+     * @param limit max number of messages
+     * @return a read-only list of the last {@code limit} received messages
+     */
+    public List<Message> tail(int limit) {
+        return receivedMsgs.page(Math.max(0, receivedMsgs.size() - limit), limit);
+    }
+
+    /**
+     * @return number of received messages
+     */
+    public int getHistorySize() {
+        return receivedMsgs.size();
+    }
+
+    /**
+     * Stream the received messages: first the ones in the history starting from the given position,
+     * then the new ones as they are delivered, in delivery order.
+     * <p>
+     * Messages are read from the history only when the subscriber requests them, so a slow subscriber
+     * doesn't buffer anything. The stream completes after the message closing the chat.
+     *
+     * @param from position of the first message
+     * @return a publisher of the messages of the chat
+     */
+    public Flow.Publisher<Message> messages(int from) {
+        return historyPublisher.from(from);
+    }
+
+    /**
+     * Find the text messages containing all the words of the query
+     *
+     * @param query words to search
+     * @return the ids of the matching messages, in delivery order
+     * @see SearchIndex#search(String)
+     */
+    public List<MessageId> search(String query) {
+        return searchIndex.search(query);
+    }
+
+    /**
+     * @param query words to search
+     * @param limit max number of results
+     * @return the ids of the most recent matching messages, in delivery order
+     * @see SearchIndex#search(String, int)
+     */
+    public List<MessageId> search(String query, int limit) {
+        return searchIndex.search(query, limit);
+    }
+
+    /**
+     * Index the messages already in the history when the chat was created, e.g. when it is restored from a backup.
+     * Messages delivered later are indexed as they arrive.
+     */
+    public void buildSearchIndex() {
+        try {
+            pushLock.lock();
+            if (searchIndex.size() > 0)
+                return;
+            for (Message m : receivedMsgs) {
+                if (m instanceof StringMessage sm)
+                    searchIndex.add(sm);
+            }
+        } finally {
+            pushLock.unlock();
+        }
     }
 
     private void localClose(CloseMessage cm) {
         // Close the chatroom
         closed = true;
-        receivedMsgs.add(cm);
-        msgChangeSupport.firePropertyChange("ADD_MSG", this, new MessageGUI(cm, this));
+        receivedMsgs.append(cm);
+        notifyDelivered(cm);
+    }
+
+    /**
+     * Queue the event for a delivered message, or add it to the current batch.
+     * Must be called while holding the {@link #pushLock}
+     *
+     * @param m delivered message
+     */
+    private void notifyDelivered(Message m) {
+        if (deliveredBatch != null)
+            deliveredBatch.add(m);
+        else
+            pendingEvents.add(new MessagesAdded(this, List.of(m)));
     }
 
     public CloseMessage createCloseMessage(String senderId) {
@@ -271,15 +759,52 @@ public class ChatRoom {
             pushLock.lock();
             increaseVC(senderId);
             var cm = new CloseMessage(Map.copyOf(vectorClocks), senderId);
+            observe(cm);
             localClose(cm);
+            publishState(cm.vectorClocks());
             return cm;
         } finally {
             pushLock.unlock();
+            dispatchEvents();
         }
     }
 
     private void increaseVC(String sender) {
         vectorClocks.replace(sender, vectorClocks.get(sender) + 1);
     }
-}
 
+    /**
+     * Publish a new snapshot of the state. Must be called while holding the {@link #pushLock}
+     *
+     * @param vcCopy immutable copy of the current vector clocks
+     */
+    private void publishState(Map<String, Integer> vcCopy) {
+        state = new State(state.version() + 1, vcCopy, closed);
+    }
+
+    /**
+     * Fire the pending events, outside the {@link #pushLock}, so that slow listeners don't stall
+     * the acceptance of new messages.
+     * <p>
+     * Only one thread at a time fires the events, in the same order they were generated;
+     * other threads just leave their events in the queue for it.
+     * History subscribers are always signalled, since the events may already have been fired by another thread.
+     */
+    private void dispatchEvents() {
+        historyPublisher.signalAll();
+        while (!pendingEvents.isEmpty() && dispatching.compareAndSet(false, true)) {
+            try {
+                MessagesAdded evt;
+                while ((evt = pendingEvents.poll()) != null) {
+                    try {
+                        msgListener.accept(evt);
+                    } catch (RuntimeException ex) {
+                        LOGGER.error(STR."[\{id}] Unexpected error in listener for event \{evt.messages()}", ex);
+                    }
+                }
+            } finally {
+                dispatching.set(false);
+            }
+        }
+    }
+}
@@ -3,19 +3,23 @@ package it.polimi.peer;
 import it.polimi.SocketManager;
 import it.polimi.packets.ByePacket;
 import it.polimi.packets.p2p.*;
+import it.polimi.peer.events.EventBus;
+import it.polimi.peer.events.RoomAdded;
+import it.polimi.peer.utility.SerialExecutor;
 import org.jetbrains.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.beans.PropertyChangeListener;
-import java.beans.PropertyChangeSupport;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.SocketAddress;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
@@ -23,39 +27,63 @@ import java.util.function.Consumer;
  * ChatUpdater is the class in charge of parsing each incoming message, and update the chat
  * accordingly.
  * All messages put in waiting lists here are because the chatroom has not yet been created.
+ * <p>
+ * Packets of a chat (messages, creation and closing) are handled in order on a {@link SerialExecutor} of the chat,
+ * so different chats are updated in parallel on virtual threads. Packets not related to a chat are handled
+ * directly by the receiving thread. The executor of a chat is dropped as soon as it is idle, so packets of unknown
+ * or deleted chats don't leave executors behind.
+ * <p>
+ * In chats where members relay messages (see {@link ChatRoom#getDissemination()}) the messages received for
+ * the first time are relayed to other members. Messages received in bulk (missing messages and forwarded queues)
+ * are not relayed.
  */
 public class ChatUpdater implements Runnable {
     private static final Logger LOGGER = LoggerFactory.getLogger(ChatUpdater.class);
 
     private PeerSocketManager socketManager;
-    private final Set<ChatRoom> chats;
-    private final PropertyChangeSupport roomChangeSupport;
-    private final PropertyChangeListener msgChangeListener;
+    private final RoomRegistry chats;
+    private final EventBus events;
     private final BiConsumer<String, SocketAddress> onPeerConnected;
     private final Consumer<String> onPeerDisconnected;
-    private final Set<MessagePacket> waitingMessages;
-    private final Lock waitingMessagesLock;
-    private final Set<CloseRoomPacket> waitingClose;
-    private final Set<UUID> deletedRooms;
+    private final Consumer<SyncRequestPacket> onSyncRequest;
+    private final Consumer<NackPacket> onNack;
+    private final BiConsumer<ChatRoom, List<MessagePacket>> onRelay;
+    private final HoldingArea waiting;
+    private final BackupManager backupManager;
+    private final ExecutorService roomsExecutor;
+    private final Map<UUID, SerialExecutor> roomExecutors;
+    /**
+     * Single timer thread for all the delayed messages, which only hands them to their chat executor
+     */
+    private final ScheduledThreadPoolExecutor delayScheduler;
 
     public ChatUpdater(PeerSocketManager socketManager,
-                       Set<ChatRoom> chats,
-                       PropertyChangeSupport roomChangeSupport,
-                       PropertyChangeListener msgChangeListener,
+                       RoomRegistry chats,
+                       BackupManager backupManager,
+                       EventBus events,
                        BiConsumer<String, SocketAddress> onPeerConnected,
                        Consumer<String> onPeerDisconnected,
+                       Consumer<SyncRequestPacket> onSyncRequest,
+                       Consumer<NackPacket> onNack,
+                       BiConsumer<ChatRoom, List<MessagePacket>> onRelay,
                        Set<MessagePacket> waitingMessages,
                        Set<CloseRoomPacket> waitingClose) {
         this.socketManager = socketManager;
         this.chats = chats;
-        this.roomChangeSupport = roomChangeSupport;
-        this.msgChangeListener = msgChangeListener;
+        this.backupManager = backupManager;
+        this.events = events;
         this.onPeerConnected = onPeerConnected;
         this.onPeerDisconnected = onPeerDisconnected;
-        this.waitingMessages = waitingMessages;
-        this.waitingMessagesLock = new ReentrantLock();
-        this.waitingClose = waitingClose;
-        this.deletedRooms = ConcurrentHashMap.newKeySet();
+        this.onSyncRequest = onSyncRequest;
+        this.onNack = onNack;
+        this.onRelay = onRelay;
+        this.waiting = new HoldingArea();
+        this.waiting.hold(waitingMessages);
+        waitingClose.forEach(this.waiting::holdClose);
+        this.roomsExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        this.roomExecutors = new ConcurrentHashMap<>();
+        this.delayScheduler = new ScheduledThreadPoolExecutor(1, Thread.ofPlatform().name("delayed-messages").daemon().factory());
+        this.delayScheduler.setRemoveOnCancelPolicy(true);
     }
 
     @Override
@@ -79,52 +107,139 @@ public class ChatUpdater implements Runnable {
 
     void handlePacket(P2PPacket packet, SocketAddress sender) {
         switch (packet) {
-            case MessagePacket m -> messageHandler(m);
+            case MessagePacket m -> dispatch(m.chatId(), () -> messageHandler(m));
+
+            case MessageBatchPacket mbp -> {
+                if (!mbp.msgs().isEmpty())
+                    dispatch(mbp.chatId(), () -> messagesHandler(mbp.msgs().stream().map(m -> new MessagePacket(mbp.chatId(), m)).toList(), false));
+            }
 
-            //Sends a message with a delay of 7 seconds, in order to test the vector clocks ordering
+            //Delivers the message after the given delay, in order to test the vector clocks ordering
             case DelayedMessagePacket dm -> {
                 LOGGER.warn(STR."Message delayed! \{dm}");
-                new Thread(() -> {
-                    try {
-                        Thread.sleep(dm.delayedTime() * 1000L);
-                    } catch (InterruptedException e) {
-                        throw new RuntimeException(e);
-                    }
-                    MessagePacket m = new MessagePacket(dm.chatId(), dm.msg());
-                    messageHandler(m);
-                }).start();
+                MessagePacket m = new MessagePacket(dm.chatId(), dm.msg());
+                delayScheduler.schedule(() -> dispatch(m.chatId(), () -> messageHandler(m)), dm.delayedTime(), TimeUnit.SECONDS);
             }
 
-            case CreateRoomPacket crp -> {
-                LOGGER.info(STR."Adding new room \{crp.name()} \{crp.id()}");
-                ChatRoom newChat = new ChatRoom(crp.name(), crp.ids(), crp.id(), msgChangeListener);
-                // If we used a normal put and the newChat was already present and closed, it would have reopened it, we don't want that
-                chats.add(newChat);
-                roomChangeSupport.firePropertyChange("ADD_ROOM", null, newChat);
-
-                // Once we create a new chatroom, check for all waiting messages if they can be popped.
-                // By blocking the messages here, it mimics the arrival of the messages, postponing it for the user until
-                // the chatroom has been created
-                popQueue();
-            }
+            case CreateRoomPacket crp -> dispatch(crp.id(), () -> createHandler(crp));
 
-            case CloseRoomPacket crp -> closeHandler(crp);
+            case CloseRoomPacket crp -> dispatch(crp.chatId(), () -> closeHandler(crp));
 
             case HelloPacket helloPacket -> onPeerConnected.accept(helloPacket.id(), sender);
 
             case ByePacket byePacket -> onPeerDisconnected.accept(byePacket.id());
+
+            case SyncRequestPacket srp -> onSyncRequest.accept(srp);
+
+            case NackPacket np -> onNack.accept(np);
+        }
+    }
+
+    /**
+     * Handle a sequence of packets in order, e.g. the queue forwarded by the discovery.
+     * Consecutive messages are grouped by chat and added to their chat with a single bulk delivery.
+     *
+     * @param packets packets to handle
+     * @param sender  address of the sender
+     */
+    void handlePackets(Collection<? extends P2PPacket> packets, SocketAddress sender) {
+        Map<UUID, List<MessagePacket>> messages = new LinkedHashMap<>();
+        for (P2PPacket p : packets) {
+            if (p instanceof MessagePacket m) {
+                messages.computeIfAbsent(m.chatId(), _ -> new ArrayList<>()).add(m);
+            } else {
+                dispatchAll(messages);
+                messages.clear();
+                handlePacket(p, sender);
+            }
+        }
+        dispatchAll(messages);
+    }
+
+    private void dispatchAll(Map<UUID, List<MessagePacket>> messages) {
+        messages.forEach((chatId, msgs) -> dispatch(chatId, () -> messagesHandler(msgs, false)));
+    }
+
+    /**
+     * Drop the delayed messages which haven't been delivered yet, e.g. when disconnecting.
+     * As for any lost message, they can be recovered from the other members of the chat.
+     */
+    public void cancelDelayedMessages() {
+        int cancelled = 0;
+        for (Runnable task : delayScheduler.getQueue()) {
+            if (((Future<?>) task).cancel(false))
+                cancelled++;
+        }
+        if (cancelled > 0)
+            LOGGER.info(STR."Cancelled \{cancelled} delayed messages");
+    }
+
+    /**
+     * Run a task on the executor of a chat, after the tasks already submitted for the same chat
+     * <p>
+     * The task is handed to the executor while holding the entry of the chat, so that an executor is never
+     * dropped by {@link #dropIfIdle(UUID)} after receiving a task.
+     *
+     * @param chatId id of the chat
+     * @param task   task updating the chat
+     */
+    private void dispatch(UUID chatId, Runnable task) {
+        roomExecutors.compute(chatId, (_, executor) -> {
+            if (executor == null)
+                executor = new SerialExecutor(roomsExecutor, () -> dropIfIdle(chatId));
+            executor.execute(task);
+            return executor;
+        });
+    }
+
+    /**
+     * Drop the executor of a chat if it has no tasks
+     *
+     * @param chatId id of the chat
+     */
+    private void dropIfIdle(UUID chatId) {
+        roomExecutors.computeIfPresent(chatId, (_, executor) -> executor.isIdle() ? null : executor);
+    }
+
+    /**
+     * Stop handling the packets of the chats and release the timer of the delayed messages,
+     * the tasks not started yet and the delayed messages not delivered yet are dropped
+     *
+     * @see #cancelDelayedMessages()
+     */
+    public void close() {
+        delayScheduler.shutdownNow();
+        roomsExecutor.shutdownNow();
+    }
+
+    private void createHandler(CreateRoomPacket crp) {
+        LOGGER.info(STR."Adding new room \{crp.name()} \{crp.id()}");
+        ChatRoom newChat = new ChatRoom(crp.name(), crp.ids(), crp.id(), events::publish, backupManager.newHistory(crp.id()), crp.dissemination());
+        // If the room is already present (and maybe closed), keep it instead of reopening it
+        if (chats.add(newChat))
+            events.publish(new RoomAdded(newChat));
+
+        // Once we create a new chatroom, check for all waiting messages if they can be popped.
+        // By blocking the messages here, it mimics the arrival of the messages, postponing it for the user until
+        // the chatroom has been created
+        popQueue(crp.id());
+    }
+
+    /**
+     * @param msgs  messages of the same chat
+     * @param relay whether the new messages are relayed, if members of the chat relay messages
+     */
+    private void messagesHandler(List<MessagePacket> msgs, boolean relay) {
+        if (checkChatExists(msgs, relay) == 0) {
+            LOGGER.warn(STR."Received \{msgs.size()} messages from an unknown chat, keeping them on hold");
+            waiting.hold(msgs);
         }
     }
 
     private void messageHandler(MessagePacket m) {
         if (checkChatExists(m) == 0) {
-            try {
-                LOGGER.warn(STR."Received message \{m} from an unknown chat, keeping it on hold");
-                waitingMessagesLock.lock();
-                waitingMessages.add(m);
-            } finally {
-                waitingMessagesLock.unlock();
-            }
+            LOGGER.warn(STR."Received message \{m} from an unknown chat, keeping it on hold");
+            waiting.hold(List.of(m));
         }
     }
 
@@ -138,16 +253,33 @@ public class ChatUpdater implements Runnable {
      * -1 if the message is destined to a closed chatroom
      */
     private int checkChatExists(MessagePacket m) {
-        if (deletedRooms.stream().anyMatch(x -> x.equals(m.chatId())))
+        return checkChatExists(List.of(m), true);
+    }
+
+    /**
+     * Same as {@link #checkChatExists(MessagePacket)}, adding all the messages at once
+     *
+     * @param msgs  messages of the same chat
+     * @param relay whether the new messages are relayed, if members of the chat relay messages
+     */
+    private int checkChatExists(List<MessagePacket> msgs, boolean relay) {
+        UUID chatId = msgs.getFirst().chatId();
+        if (chats.isDeleted(chatId))
             return -1;
 
-        ChatRoom chatRoom = chats.stream()
-                .filter(c -> Objects.equals(c.getId(), m.chatId()))
-                .findFirst()
-                .orElse(null);
+        ChatRoom chatRoom = chats.get(chatId);
 
         if (chatRoom != null) {
-            chatRoom.addMessage(m.msg());
+            // Packets of a chat are handled one at a time, so nobody else can receive them in between
+            List<MessagePacket> toRelay = relay && chatRoom.getDissemination().relays()
+                    ? msgs.stream().filter(m -> !chatRoom.hasReceived(m.msg())).toList()
+                    : List.of();
+            if (msgs.size() == 1)
+                chatRoom.addMessage(msgs.getFirst().msg());
+            else
+                chatRoom.addMessages(msgs.stream().map(MessagePacket::msg).toList());
+            if (!toRelay.isEmpty())
+                onRelay.accept(chatRoom, toRelay);
             return 1;
         } else {
             return 0;
@@ -162,60 +294,47 @@ public class ChatUpdater implements Runnable {
      * -1 if the chat has already been deleted and cannot be seen from the user's perspective
      */
     private int closeHandler(CloseRoomPacket crp) {
-        ChatRoom toClose = chats
-                .stream()
-                .filter(c -> Objects.equals(c.getId(), crp.chatId()))
-                .findFirst()
-                .orElse(null);
+        ChatRoom toClose = chats.get(crp.chatId());
         if (toClose != null) {
             toClose.close(crp.closeMessage());
             return 1;
-        } else if (deletedRooms.stream().anyMatch(x -> x.equals(crp.chatId())))
+        } else if (chats.isDeleted(crp.chatId()))
             return -1;
         else {
-            waitingClose.add(crp);
+            waiting.holdClose(crp);
             return 0;
         }
     }
 
-    public void deleteChat(UUID chatID) {
-        deletedRooms.add(chatID);
-    }
-
     /**
-     * Pops the waiting messages from their respective queues.
-     * If the methods return 1, then it means that the chat was found and the packet has done its job, if
-     * the return is -1, it means that the chat has been deleted and the packets can be removed from the queues
-     * without problems
+     * Pops the waiting packets of a chat from the holding area.
+     * Since the chat has just been created, the packets are either passed to the chat or dropped
+     * if it has been deleted; in both cases they are not put on hold again.
+     *
+     * @param chatId id of the chat
      */
-    private void popQueue() {
-        try {
-            waitingMessagesLock.lock();
-            waitingMessages.removeIf(m -> {
-                int res = checkChatExists(m);
-                if (res == 1 || res == -1) {
-                    LOGGER.info(STR."Popped message \{m}, was waiting for chat creation");
-                    return true;
-                }
-                return false;
-            });
-        } finally {
-            waitingMessagesLock.unlock();
+    private void popQueue(UUID chatId) {
+        var held = waiting.release(chatId);
+        if (!held.messages().isEmpty()) {
+            LOGGER.info(STR."Popped \{held.messages().size()} messages of chat \{chatId}, were waiting for chat creation");
+            messagesHandler(held.messages(), true);
         }
-
-        waitingClose.removeIf(crp -> {
-            int res = closeHandler(crp);
-            return res == 1 || res == -1;
-        });
+        held.closes().forEach(this::closeHandler);
     }
 
+    /**
+     * @return a copy of the messages waiting for the creation of their chat
+     */
     @VisibleForTesting
     public Set<MessagePacket> getWaitingMessages() {
-        return Collections.unmodifiableSet(waitingMessages);
+        return waiting.getMessages();
     }
 
+    /**
+     * @return a copy of the close packets waiting for the creation of their chat
+     */
     @VisibleForTesting
     public Set<CloseRoomPacket> getWaitingClose() {
-        return Collections.unmodifiableSet(waitingClose);
+        return waiting.getCloses();
     }
 }
\ No newline at end of file
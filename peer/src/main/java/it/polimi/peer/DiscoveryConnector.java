@@ -3,30 +3,37 @@ package it.polimi.peer;
 import it.polimi.packets.ByePacket;
 import it.polimi.packets.discovery.*;
 import it.polimi.packets.p2p.*;
+import it.polimi.peer.utility.PacketSize;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.SocketAddress;
-import java.util.Collection;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class DiscoveryConnector implements Runnable {
     private static final Logger LOGGER = LoggerFactory.getLogger(DiscoveryConnector.class);
 
-    private final CompletableFuture<IPsPacket> ipsPromise;
+    private volatile CompletableFuture<IPsPacket> ipsPromise;
+    /**
+     * Held while waiting for the addresses of the peers, so that each request gets its own answer
+     */
+    private final Lock ipsLock = new ReentrantLock();
 
     private final PeerSocketManager socketManager;
     private final String id;
     private final ChatUpdater updater;
-    private static final int DELAY = 1000, RETRIES = 5, UUID_SIZE = 20, MAX_PACKET_SIZE = 40000;
+    private static final int DELAY = 1000, RETRIES = 5;
 
     public DiscoveryConnector(PeerSocketManager socketManager, String id, ChatUpdater updater) {
         this.socketManager = socketManager;
@@ -36,13 +43,39 @@ public class DiscoveryConnector implements Runnable {
     }
 
     public Map<String, SocketAddress> register() throws IOException {
-        sendToDiscovery(new UpdateIpPacket(id));
+        ipsLock.lock();
         try {
+            sendToDiscovery(new UpdateIpPacket(id));
             return ipsPromise.get().ips();
         } catch (InterruptedException e) {
             throw (IOException) new InterruptedIOException().initCause(e);
         } catch (ExecutionException e) {
             throw new IOException(e.getCause());
+        } finally {
+            ipsLock.unlock();
+        }
+    }
+
+    /**
+     * Ask the discovery the current addresses of the peers, e.g. to contact a peer which registered after this one.
+     * The discovery answers the same packet used by {@link #register()}, so this peer is registered again
+     * with the same address.
+     *
+     * @return the ids and addresses of the peers registered to the discovery
+     * @throws IOException if the discovery can't be reached or doesn't answer
+     */
+    public Map<String, SocketAddress> lookup() throws IOException {
+        ipsLock.lock();
+        try {
+            ipsPromise = new CompletableFuture<>();
+            sendToDiscovery(new UpdateIpPacket(id));
+            return ipsPromise.get((long) DELAY * RETRIES, TimeUnit.MILLISECONDS).ips();
+        } catch (InterruptedException e) {
+            throw (IOException) new InterruptedIOException().initCause(e);
+        } catch (ExecutionException | TimeoutException e) {
+            throw new IOException(e);
+        } finally {
+            ipsLock.unlock();
         }
     }
 
@@ -52,58 +85,15 @@ public class DiscoveryConnector implements Runnable {
 
     // If the packets are too big, divide the queue in different smaller ones and send them separated
     public void forwardQueue(String id, Queue<P2PPacket> queue) throws IOException {
-        if (evaluateSize(queue) > MAX_PACKET_SIZE) {
-            Collection<? extends Queue<P2PPacket>> queues = dividePackets(queue);
-            for (Queue<P2PPacket> q : queues) {
-                sendToDiscovery(new ForwardPacket(q, this.id, id));
+        if (PacketSize.of(queue) > PacketSize.MAX_PACKET_SIZE) {
+            for (List<P2PPacket> q : PacketSize.split(queue, PacketSize::of, PacketSize.MAX_PACKET_SIZE)) {
+                sendToDiscovery(new ForwardPacket(new LinkedList<>(q), this.id, id));
             }
         } else {
             sendToDiscovery(new ForwardPacket(queue, this.id, id));
         }
     }
 
-    // Gets size of the whole packet queue, only check string items
-    private int evaluateSize(Queue<P2PPacket> queue) {
-        int size = 0;
-        for (P2PPacket p : queue) {
-            size += evaluateSize(p);
-        }
-        return size;
-    }
-
-    // Gets size of the whole packet queue, only check string items
-    private int evaluateSize(P2PPacket p) {
-        //Approximated overhead of java serialization
-        int size = 50;
-        switch (p) {
-            case ByePacket bp -> size += bp.id().length();
-            case CreateRoomPacket crp ->
-                    size += crp.name().length() + crp.ids().stream().reduce(0, (s, t) -> s + t.length(), Integer::sum) + UUID_SIZE;
-            case DelayedMessagePacket dmp ->
-                    size += getVCSize(dmp.msg().vectorClocks()) + dmp.msg().sender().length() + dmp.msg().msg().length() + UUID_SIZE;
-            case CloseRoomPacket clrp ->
-                    size += clrp.closeMessage().sender().length() + getVCSize(clrp.closeMessage().vectorClocks()) + UUID_SIZE;
-            case HelloPacket hp -> size += hp.id().length();
-            case MessagePacket mp ->
-                    size += getVCSize(mp.msg().vectorClocks()) + mp.msg().sender().length() + mp.msg().msg().length() + UUID_SIZE;
-        }
-        return size;
-    }
-
-    private int getVCSize(Map<String, Integer> vc) {
-        return vc.keySet().stream()
-                .mapToInt(s -> s.length() + 8)
-                .sum();
-    }
-
-    private Collection<? extends Queue<P2PPacket>> dividePackets(Queue<P2PPacket> queues) {
-        final AtomicInteger counter = new AtomicInteger(0);
-
-        return queues.stream()
-                .collect(Collectors.groupingBy(p -> counter.getAndAdd(evaluateSize(p)) / MAX_PACKET_SIZE, Collectors.toCollection(LinkedList::new)))
-                .values();
-    }
-
     private void sendToDiscovery(Peer2DiscoveryPacket packet) throws IOException {
         for (int i = 0; i < RETRIES; i++) {
             try {
@@ -136,7 +126,7 @@ public class DiscoveryConnector implements Runnable {
                     case ForwardedPacket forwardedPacket -> {
                         if (forwardedPacket.senderAddr() != null)
                             updater.handlePacket(new HelloPacket(forwardedPacket.senderId()), forwardedPacket.senderAddr());
-                        forwardedPacket.packets().forEach(p2p -> updater.handlePacket(p2p, forwardedPacket.senderAddr()));
+                        updater.handlePackets(forwardedPacket.packets(), forwardedPacket.senderAddr());
                     }
                 }
 
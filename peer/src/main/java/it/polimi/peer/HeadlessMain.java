@@ -0,0 +1,193 @@
+package it.polimi.peer;
+
+import it.polimi.messages.CloseMessage;
+import it.polimi.messages.Message;
+import it.polimi.messages.StringMessage;
+import it.polimi.packets.p2p.Dissemination;
+import it.polimi.peer.events.*;
+import it.polimi.peer.exceptions.DiscoveryUnreachableException;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Main class which runs a peer without GUI, as a long-lived service
+ * <p>
+ * Usage: {@code HeadlessMain <discovery address> <id> <port> [--lazy]}
+ * <p>
+ * With {@code --lazy} the peer only connects to the members of its rooms, see
+ * {@link PeerClient#join(String, String, int, java.util.function.Consumer, boolean)}.
+ * <p>
+ * The events of the peer are printed on the standard output, one per line. Commands are read from the
+ * standard input, one per line:
+ * <ul>
+ *     <li>{@code peers}: print the other peers in the network</li>
+ *     <li>{@code rooms}: print the rooms</li>
+ *     <li>{@code create <name> <user,user,...> [gossip:<fanout>|tree:<fanout>]}: create a room</li>
+ *     <li>{@code send <room> <text>}: send a message, the room is given by id or name</li>
+ *     <li>{@code close <room>}: close a room</li>
+ *     <li>{@code quit}: leave the network and exit</li>
+ * </ul>
+ * When the standard input is closed, the peer keeps running until the process is terminated.
+ * The peer leaves the network when the process is terminated.
+ *
+ * @implNote as in {@link AppMain}, this class must not declare any static logger fields
+ */
+public class HeadlessMain {
+    private final PeerClient client;
+    private final PrintStream out;
+
+    private HeadlessMain(PeerClient client, PrintStream out) {
+        this.client = client;
+        this.out = out;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        // Configure log4j file if none is already set
+        if (System.getProperty("log4j.configurationFile") == null)
+            System.setProperty("log4j.configurationFile", "log4j2-peer.xml");
+
+        // add SLF4JBridgeHandler to j.u.l's root logger
+        SLF4JBridgeHandler.removeHandlersForRootLogger();
+        SLF4JBridgeHandler.install();
+
+        if (args.length < 3 || args.length > 4 || (args.length == 4 && !args[3].equals("--lazy"))) {
+            System.err.println("Usage: HeadlessMain <discovery address> <id> <port> [--lazy]");
+            System.exit(1);
+        }
+        int port;
+        try {
+            port = Integer.parseInt(args[2]);
+        } catch (NumberFormatException e) {
+            System.err.println(STR."Invalid port \{args[2]}");
+            System.exit(1);
+            return;
+        }
+
+        PrintStream out = System.out;
+        PeerClient client = PeerClient.join(args[0], args[1], port, e -> printEvent(out, e), args.length == 4);
+        HeadlessMain main = new HeadlessMain(client, out);
+
+        CountDownLatch stopped = new CountDownLatch(1);
+        Thread shutdownHook = new Thread(() -> {
+            main.leave();
+            stopped.countDown();
+        });
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+        boolean quit = main.readCommands(new BufferedReader(new InputStreamReader(System.in)));
+        if (quit) {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            main.leave();
+        } else {
+            // Keep running as a service
+            stopped.await();
+        }
+    }
+
+    /**
+     * Execute the commands, until {@code quit} or the end of the input
+     *
+     * @return true if the {@code quit} command was read
+     */
+    private boolean readCommands(BufferedReader in) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] cmd = line.trim().split("\\s+", 2);
+            String arg = cmd.length > 1 ? cmd[1] : "";
+            try {
+                switch (cmd[0]) {
+                    case "" -> {
+                    }
+                    case "quit" -> {
+                        return true;
+                    }
+                    case "peers" -> out.println(STR."peers \{String.join(",", new TreeSet<>(client.getPeers()))}");
+                    case "rooms" -> client.getRooms().forEach(r -> out.println(STR."room \{describe(r)}"));
+                    case "create" -> create(arg);
+                    case "send" -> {
+                        String[] parts = arg.split("\\s+", 2);
+                        if (parts.length < 2)
+                            throw new IllegalArgumentException("Usage: send <room> <text>");
+                        client.send(findRoom(parts[0]), parts[1]);
+                    }
+                    case "close" -> client.closeRoom(findRoom(arg));
+                    default -> throw new IllegalArgumentException(STR."Unknown command \{cmd[0]}");
+                }
+            } catch (IllegalArgumentException e) {
+                out.println(STR."error \{e.getMessage()}");
+            }
+        }
+        return false;
+    }
+
+    private void create(String arg) {
+        String[] parts = arg.split("\\s+");
+        if (parts.length < 2 || parts.length > 3)
+            throw new IllegalArgumentException("Usage: create <name> <user,user,...> [gossip:<fanout>|tree:<fanout>]");
+
+        Dissemination dissemination = Dissemination.direct();
+        if (parts.length == 3) {
+            String[] strategy = parts[2].split(":", 2);
+            if (strategy.length != 2)
+                throw new IllegalArgumentException(STR."Invalid strategy \{parts[2]}");
+            int fanout = Integer.parseInt(strategy[1]);
+            dissemination = switch (strategy[0]) {
+                case "gossip" -> Dissemination.gossip(fanout);
+                case "tree" -> Dissemination.tree(fanout);
+                default -> throw new IllegalArgumentException(STR."Invalid strategy \{parts[2]}");
+            };
+        }
+        Set<String> users = new HashSet<>(Arrays.asList(parts[1].split(",")));
+        client.createRoom(parts[0], users, dissemination);
+    }
+
+    /**
+     * @param room id or name of a room
+     * @return the room
+     * @throws IllegalArgumentException if there is no room, or more than one room with the given name
+     */
+    private ChatRoom findRoom(String room) {
+        List<ChatRoom> found = client.getRooms().stream()
+                .filter(r -> r.getId().toString().equals(room) || r.getName().equals(room))
+                .toList();
+        if (found.size() != 1)
+            throw new IllegalArgumentException(found.isEmpty()
+                    ? STR."Unknown room \{room}"
+                    : STR."More than one room named \{room}, use its id");
+        return found.getFirst();
+    }
+
+    private void leave() {
+        try {
+            client.close();
+        } catch (DiscoveryUnreachableException e) {
+            out.println("error Can't contact the discovery, the other peers will notice the disconnection later");
+        }
+    }
+
+    private static String describe(ChatRoom room) {
+        return STR."\{room.getId()} \{room.getName()} \{String.join(",", new TreeSet<>(room.getUsers()))}";
+    }
+
+    private static void printEvent(PrintStream out, PeerEvent event) {
+        switch (event) {
+            case RoomAdded(ChatRoom room) -> out.println(STR."added \{describe(room)}");
+            case UserConnected(String id) -> out.println(STR."connected \{id}");
+            case UserDisconnected(String id) -> out.println(STR."disconnected \{id}");
+            case MessagesAdded(ChatRoom room, List<Message> messages) -> {
+                for (Message m : messages) {
+                    switch (m) {
+                        case StringMessage sm -> out.println(STR."message \{room.getId()} \{sm.sender()} \{sm.msg()}");
+                        case CloseMessage cm -> out.println(STR."closed \{room.getId()} \{cm.sender()}");
+                    }
+                }
+            }
+        }
+    }
+}
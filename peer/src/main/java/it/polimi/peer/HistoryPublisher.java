@@ -0,0 +1,154 @@
+package it.polimi.peer;
+
+import it.polimi.messages.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Publishers of the messages of a chat, which replay the history from a given position and then
+ * follow the new deliveries.
+ * <p>
+ * The history itself is the buffer of every subscription: a subscription only keeps the position of the next
+ * message, which is read from the history when the subscriber requests it, so a slow subscriber doesn't
+ * hold any message in memory. Subscriptions are completed once the chat is closed and the subscriber has
+ * received all the messages.
+ * <p>
+ * Signals to a subscriber are serialized and run on virtual threads.
+ */
+class HistoryPublisher {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HistoryPublisher.class);
+    private static final ExecutorService EXECUTOR = Executors.newVirtualThreadPerTaskExecutor();
+    /**
+     * Max number of messages read from the history at once
+     */
+    private static final int PAGE_SIZE = 256;
+
+    private final ChatHistory history;
+    private final BooleanSupplier closed;
+    private final Set<HistorySubscription> subscriptions;
+
+    /**
+     * @param history history of the chat
+     * @param closed  whether the chat has been closed, after which no message is added to the history
+     */
+    HistoryPublisher(ChatHistory history, BooleanSupplier closed) {
+        this.history = history;
+        this.closed = closed;
+        this.subscriptions = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * @param from position of the first message to publish
+     * @return a publisher of the messages starting from the given position
+     */
+    Flow.Publisher<Message> from(int from) {
+        if (from < 0)
+            throw new IllegalArgumentException("Invalid position");
+        return subscriber -> {
+            var s = new HistorySubscription(subscriber, from);
+            subscriptions.add(s);
+            subscriber.onSubscribe(s);
+            s.signal();
+        };
+    }
+
+    /**
+     * Notify the subscriptions that new messages may be in the history
+     */
+    void signalAll() {
+        for (HistorySubscription s : subscriptions)
+            s.signal();
+    }
+
+    private final class HistorySubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super Message> subscriber;
+        private final AtomicLong demand;
+        private final AtomicInteger pendingSignals;
+        private volatile boolean done;
+        private volatile Throwable invalidRequest;
+        private int next;
+
+        private HistorySubscription(Flow.Subscriber<? super Message> subscriber, int from) {
+            this.subscriber = subscriber;
+            this.next = from;
+            this.demand = new AtomicLong();
+            this.pendingSignals = new AtomicInteger();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0)
+                invalidRequest = new IllegalArgumentException(STR."Non-positive request \{n}");
+            else
+                demand.accumulateAndGet(n, (d, r) -> d + r < 0 ? Long.MAX_VALUE : d + r);
+            signal();
+        }
+
+        @Override
+        public void cancel() {
+            done = true;
+            subscriptions.remove(this);
+        }
+
+        /**
+         * Schedule a drain, unless one is already running: in that case it will run once more
+         */
+        private void signal() {
+            if (!done && pendingSignals.getAndIncrement() == 0)
+                EXECUTOR.execute(this::drain);
+        }
+
+        private void drain() {
+            int signals = 1;
+            do {
+                try {
+                    emit();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Unexpected error in history subscriber, cancelling the subscription", e);
+                    cancel();
+                }
+                signals = pendingSignals.addAndGet(-signals);
+            } while (signals != 0);
+        }
+
+        /**
+         * Send the requested messages which are already in the history
+         */
+        private void emit() {
+            if (done)
+                return;
+            if (invalidRequest != null) {
+                cancel();
+                subscriber.onError(invalidRequest);
+                return;
+            }
+
+            // Must be read before the size, no message is added after the chat is closed
+            boolean wasClosed = closed.getAsBoolean();
+            int size = history.size();
+            while (!done && demand.get() > 0 && next < size) {
+                var page = history.page(next, (int) Math.min(PAGE_SIZE, demand.get()));
+                for (Message m : page) {
+                    if (done)
+                        return;
+                    next++;
+                    demand.decrementAndGet();
+                    subscriber.onNext(m);
+                }
+            }
+            if (!done && wasClosed && next >= size) {
+                cancel();
+                subscriber.onComplete();
+            }
+        }
+    }
+}
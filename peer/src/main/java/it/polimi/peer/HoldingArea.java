@@ -0,0 +1,179 @@
+package it.polimi.peer;
+
+import it.polimi.packets.p2p.CloseRoomPacket;
+import it.polimi.packets.p2p.MessagePacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Packets received for a chat which has not been created yet, grouped by chat.
+ * <p>
+ * When the chat is created only its own packets are released. To bound the memory used by chats which are
+ * never created, each chat holds at most {@link #MAX_ROOM_MESSAGES} messages, at most {@link #MAX_ROOMS} chats
+ * are held (the oldest one is dropped first) and the packets of a chat are dropped once the first one has been
+ * held for longer than the time to live.
+ * <p>
+ * This class is thread-safe.
+ */
+public class HoldingArea {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HoldingArea.class);
+
+    public static final int MAX_ROOM_MESSAGES = 10_000;
+    public static final int MAX_ROOMS = 1000;
+    public static final Duration DEFAULT_TTL = Duration.ofDays(1);
+
+    /**
+     * Packets released when a chat is created
+     *
+     * @param messages messages of the chat, in arrival order
+     * @param closes   close packets of the chat
+     */
+    public record Held(List<MessagePacket> messages, List<CloseRoomPacket> closes) {
+    }
+
+    private static final class Bucket {
+        private final long created = System.nanoTime();
+        private final Set<MessagePacket> messages = new LinkedHashSet<>();
+        private final Set<CloseRoomPacket> closes = new LinkedHashSet<>();
+    }
+
+    private final Duration ttl;
+    private final Lock lock;
+    /**
+     * Buckets in creation order, so the expired ones are at the beginning
+     */
+    private final Map<UUID, Bucket> buckets;
+
+    public HoldingArea() {
+        this(DEFAULT_TTL);
+    }
+
+    /**
+     * @param ttl max time the packets of a chat are held
+     */
+    public HoldingArea(Duration ttl) {
+        this.ttl = ttl;
+        this.lock = new ReentrantLock();
+        this.buckets = new LinkedHashMap<>();
+    }
+
+    /**
+     * Hold messages until their chat is created
+     *
+     * @param msgs messages to hold
+     */
+    public void hold(Collection<MessagePacket> msgs) {
+        lock.lock();
+        try {
+            expire();
+            for (MessagePacket m : msgs) {
+                Bucket bucket = bucket(m.chatId());
+                if (bucket.messages.size() >= MAX_ROOM_MESSAGES) {
+                    LOGGER.warn(STR."Too many messages waiting for chat \{m.chatId()}, dropping \{m.msg()}");
+                    continue;
+                }
+                bucket.messages.add(m);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hold a close packet until its chat is created
+     *
+     * @param crp packet to hold
+     */
+    public void holdClose(CloseRoomPacket crp) {
+        lock.lock();
+        try {
+            expire();
+            bucket(crp.chatId()).closes.add(crp);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the packets of a chat
+     *
+     * @param chatId id of the chat
+     * @return the packets held for the chat
+     */
+    public Held release(UUID chatId) {
+        lock.lock();
+        try {
+            Bucket bucket = buckets.remove(chatId);
+            if (bucket == null)
+                return new Held(List.of(), List.of());
+            return new Held(List.copyOf(bucket.messages), List.copyOf(bucket.closes));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return a copy of all the messages held
+     */
+    public Set<MessagePacket> getMessages() {
+        lock.lock();
+        try {
+            Set<MessagePacket> res = new HashSet<>();
+            buckets.values().forEach(b -> res.addAll(b.messages));
+            return res;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return a copy of all the close packets held
+     */
+    public Set<CloseRoomPacket> getCloses() {
+        lock.lock();
+        try {
+            Set<CloseRoomPacket> res = new HashSet<>();
+            buckets.values().forEach(b -> res.addAll(b.closes));
+            return res;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the bucket of a chat, creating it if needed. Must be called holding the lock
+     */
+    private Bucket bucket(UUID chatId) {
+        Bucket bucket = buckets.get(chatId);
+        if (bucket == null) {
+            if (buckets.size() >= MAX_ROOMS) {
+                var eldest = buckets.entrySet().iterator();
+                LOGGER.warn(STR."Too many chats waiting for creation, dropping packets of chat \{eldest.next().getKey()}");
+                eldest.remove();
+            }
+            bucket = new Bucket();
+            buckets.put(chatId, bucket);
+        }
+        return bucket;
+    }
+
+    /**
+     * Drop the buckets held for longer than the time to live. Must be called holding the lock
+     */
+    private void expire() {
+        long now = System.nanoTime();
+        var iter = buckets.entrySet().iterator();
+        while (iter.hasNext()) {
+            var entry = iter.next();
+            if (now - entry.getValue().created < ttl.toNanos())
+                return;
+            LOGGER.warn(STR."Chat \{entry.getKey()} never created, dropping \{entry.getValue().messages.size()} waiting messages");
+            iter.remove();
+        }
+    }
+}
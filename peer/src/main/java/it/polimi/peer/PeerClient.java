@@ -0,0 +1,166 @@
+package it.polimi.peer;
+
+import it.polimi.messages.Message;
+import it.polimi.packets.p2p.Dissemination;
+import it.polimi.peer.events.EventBus;
+import it.polimi.peer.events.PeerEvent;
+import it.polimi.peer.exceptions.DiscoveryUnreachableException;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
+
+/**
+ * Programmatic client of a peer, for services and bots running without a GUI.
+ * <p>
+ * It wraps a {@link PeerNetManager} and its {@link PeerController}, delivering the events of the peer to plain
+ * {@link PeerEvent} subscribers: it doesn't depend on any AWT, Swing or java.beans class.
+ * <p>
+ * This class is thread-safe.
+ */
+public class PeerClient implements AutoCloseable {
+    private final PeerNetManager peer;
+
+    private PeerClient(PeerNetManager peer) {
+        this.peer = peer;
+    }
+
+    /**
+     * Join the network, see {@link #join(String, String, int, Consumer)}
+     */
+    public static PeerClient join(String discoveryAddr, String id, int port) throws IOException {
+        return join(discoveryAddr, id, port, _ -> {
+        });
+    }
+
+    /**
+     * Join the network: restore the backup of the peer, register to the discovery server and connect
+     * to the other peers
+     * <p>
+     * The subscriber also receives a {@link it.polimi.peer.events.RoomAdded} for each room restored from the backup.
+     * Bursts of messages of the same room are delivered as a single {@link it.polimi.peer.events.MessagesAdded}.
+     *
+     * @param discoveryAddr address of the discovery server
+     * @param id            unique identifier of the peer
+     * @param port          port to listen on
+     * @param subscriber    called asynchronously for each event of the peer
+     * @return the client of the peer
+     * @throws IOException if the socket can't be opened
+     * @throws Error       if the discovery server can't be reached
+     */
+    public static PeerClient join(String discoveryAddr, String id, int port,
+                                  Consumer<? super PeerEvent> subscriber) throws IOException {
+        return join(discoveryAddr, id, port, subscriber, false);
+    }
+
+    /**
+     * Join the network, see {@link #join(String, String, int, Consumer)}
+     *
+     * @param lazyConnections if true, the peer only connects to the members of its rooms instead of all the
+     *                        peers in the network, see {@link PeerNetManager#PeerNetManager(String, String, int, Consumer, boolean)}
+     */
+    public static PeerClient join(String discoveryAddr, String id, int port,
+                                  Consumer<? super PeerEvent> subscriber,
+                                  boolean lazyConnections) throws IOException {
+        return new PeerClient(new PeerNetManager(discoveryAddr, id, port, subscriber, lazyConnections));
+    }
+
+    public String getId() {
+        return peer.getId();
+    }
+
+    /**
+     * @return the ids of the other peers in the network
+     */
+    public Set<String> getPeers() {
+        return peer.getIps().keySet();
+    }
+
+    /**
+     * @return the rooms of the peer
+     */
+    public Collection<ChatRoom> getRooms() {
+        return peer.getRooms().getRooms();
+    }
+
+    /**
+     * @param id id of the room
+     * @return the room with the given id, if the peer is a member of it
+     */
+    public Optional<ChatRoom> getRoom(UUID id) {
+        return Optional.ofNullable(peer.getRooms().get(id));
+    }
+
+    /**
+     * Create a room in which messages are sent directly to all the users
+     *
+     * @see #createRoom(String, Set, Dissemination)
+     */
+    public ChatRoom createRoom(String name, Set<String> users) {
+        return createRoom(name, users, Dissemination.direct());
+    }
+
+    /**
+     * Create a room and inform its users
+     *
+     * @param name          name of the room
+     * @param users         users of the room, the local one is added if missing
+     * @param dissemination how the messages of the room are disseminated to its users
+     * @return the new room
+     */
+    public ChatRoom createRoom(String name, Set<String> users, Dissemination dissemination) {
+        Set<String> members = new HashSet<>(users);
+        members.add(getId());
+        return peer.getController().createRoom(name, members, dissemination);
+    }
+
+    /**
+     * Send a message to a room, without waiting for the other users to receive it.
+     * Can be called concurrently, see {@link PeerController#sendMessage(String, ChatRoom)}
+     *
+     * @param room room of the message
+     * @param text text of the message
+     * @return the delivery status for each recipient
+     */
+    public Map<String, CompletableFuture<Boolean>> send(ChatRoom room, String text) {
+        return peer.getController().sendMessage(text, room);
+    }
+
+    /**
+     * Stream all the messages of a room, see {@link ChatRoom#messages(int)}
+     */
+    public Flow.Publisher<Message> messages(ChatRoom room) {
+        return room.messages(0);
+    }
+
+    /**
+     * Subscribe to the events of the peer
+     *
+     * @param subscriber called asynchronously for each event, bursts of messages of the same room are delivered
+     *                   as a single event
+     * @return the subscription, to be closed to unsubscribe
+     */
+    public EventBus.Subscription subscribe(Consumer<? super PeerEvent> subscriber) {
+        return peer.getEvents().subscribe(subscriber, true);
+    }
+
+    public void closeRoom(ChatRoom room) {
+        peer.getController().closeRoom(room);
+    }
+
+    public void deleteRoom(ChatRoom room) {
+        peer.deletedChat(room);
+    }
+
+    /**
+     * Leave the network and save the backup of the peer
+     *
+     * @throws DiscoveryUnreachableException if the discovery server can't be reached, the peer stays connected
+     */
+    @Override
+    public void close() throws DiscoveryUnreachableException {
+        peer.close();
+    }
+}
@@ -1,44 +1,63 @@
 package it.polimi.peer;
 
 import it.polimi.messages.CloseMessage;
+import it.polimi.messages.Message;
+import it.polimi.messages.MessageId;
 import it.polimi.messages.StringMessage;
 import it.polimi.packets.ByePacket;
 import it.polimi.packets.p2p.*;
+import it.polimi.peer.events.EventBus;
+import it.polimi.peer.events.RoomAdded;
+import it.polimi.peer.utility.PacketSize;
 import org.jetbrains.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.beans.PropertyChangeListener;
-import java.beans.PropertyChangeSupport;
-import java.io.IOException;
 import java.net.SocketAddress;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiConsumer;
 
 public class PeerController {
     private static final Logger LOGGER = LoggerFactory.getLogger(PeerController.class);
     private final Map<String, Integer> degradedConnections = new ConcurrentHashMap<>();
-    private final Map<String, Queue<P2PPacket>> disconnectMsgs = new ConcurrentHashMap<>();
+    private final Map<String, Queue<P2PPacket>> disconnectMsgs;
+    private final Map<String, PeerMailbox> mailboxes = new ConcurrentHashMap<>();
+    /**
+     * Packets sent by {@link #resendQueued(String)}, which are still in the queue (or represented by their content)
+     * and must not be enqueued again if they fail
+     */
+    private final Set<P2PPacket> resending = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+    /**
+     * For each peer, the messages resent by the last {@link #resendQueued(String)}, which the answer to its digest
+     * must not send again (see {@link #handleSyncRequest(SyncRequestPacket)})
+     */
+    private final Map<String, Set<RoomMessage>> resent = new ConcurrentHashMap<>();
+    /**
+     * For each room, fair lock held while a local message is created and handed to the mailboxes,
+     * so that the messages reach the mailboxes in the order of their vector clocks
+     */
+    private final Map<UUID, Lock> sendSequencers = new ConcurrentHashMap<>();
     private final String id;
-    private final Set<ChatRoom> chats;
+    private final RoomRegistry chats;
     private final Map<String, SocketAddress> ips;
     private final Set<String> connectedPeers;
     private PeerSocketManager socketManager;
-    private final PropertyChangeListener msgChangeListener;
-    private final PropertyChangeSupport roomsPropertyChangeSupport;
+    private final EventBus events;
     private final ExecutorService executorService;
     private final BackupManager backupManager;
 
     private final BiConsumer<String, Throwable> onPeerUnreachable;
 
     public PeerController(String id,
-                          Set<ChatRoom> chats,
+                          RoomRegistry chats,
                           Map<String, SocketAddress> ips,
                           Set<String> connectedPeers,
                           PeerSocketManager socketManager,
-                          PropertyChangeListener msgChangeListener,
-                          PropertyChangeSupport roomsPropertyChangeSupport,
+                          EventBus events,
                           ExecutorService executorService,
                           BackupManager backupManager,
                           BiConsumer<String, Throwable> onPeerUnreachable) {
@@ -47,11 +66,11 @@ public class PeerController {
         this.ips = ips;
         this.connectedPeers = connectedPeers;
         this.socketManager = socketManager;
-        this.msgChangeListener = msgChangeListener;
-        this.roomsPropertyChangeSupport = roomsPropertyChangeSupport;
+        this.events = events;
         this.executorService = executorService;
         this.backupManager = backupManager;
         this.onPeerUnreachable = onPeerUnreachable;
+        this.disconnectMsgs = new ConcurrentHashMap<>(backupManager.getOutboxesFromBackup());
     }
 
     public void setSocketManager(PeerSocketManager socketManager) {
@@ -61,137 +80,535 @@ public class PeerController {
     /**
      * Resend queued packets to a peer
      * <p>
-     * Tries to resend packets in the {@link #disconnectMsgs} list (sent to a peer when it was disconnected).
-     * Removes packets from the list when they are sent successfully.
+     * Sends the packets in the {@link #disconnectMsgs} list (sent to a peer when it was disconnected,
+     * possibly before a restart) through the mailbox of the peer and waits for them to be sent.
+     * Packets of deleted rooms are dropped, the messages of each room are sent in as few
+     * {@link MessageBatchPacket}s as possible (see {@link #coalesce(List)}).
+     * Packets are removed from the list only once they are acked, so they are never lost.
+     * The resent messages are recorded in {@link #resent}, so that they are not sent again to answer the digest of the peer.
      *
      * @param id id of the peer
+     * @return true if all the packets were sent successfully
      */
     public boolean resendQueued(String id) {
-        if (disconnectMsgs.containsKey(id)) {
-            Iterator<P2PPacket> iter = disconnectMsgs.get(id).iterator();
-            while (iter.hasNext()) {
-                if (!sendSinglePeer(iter.next(), id)) {
-                    return false;
-                } else {
-                    iter.remove();
+        Queue<P2PPacket> queue = disconnectMsgs.get(id);
+        if (queue == null) {
+            resent.remove(id);
+            return true;
+        }
+
+        if (queue.removeIf(p -> chatId(p).map(chats::isDeleted).orElse(false)))
+            LOGGER.info(STR."[\{this.id}] Dropped queued packets of deleted rooms for \{id}");
+
+        List<P2PPacket> queued = List.copyOf(queue);
+        Set<RoomMessage> resentMsgs = new HashSet<>();
+        queued.forEach(p -> resentMsgs.addAll(roomMessages(p)));
+        resent.put(id, resentMsgs);
+        var toResend = coalesce(queued);
+        if (!queued.isEmpty())
+            LOGGER.info(STR."[\{this.id}] Resending \{queued.size()} queued packets to \{id} in \{toResend.size()} packets");
+
+        List<CompletableFuture<Boolean>> sent = new ArrayList<>();
+        toResend.forEach(r -> {
+            P2PPacket toSend = r.toSend();
+            resending.add(toSend);
+            sent.add(mailbox(id).offer(toSend).thenApply(acked -> {
+                resending.remove(toSend);
+                if (acked) {
+                    Set<P2PPacket> done = Collections.newSetFromMap(new IdentityHashMap<>());
+                    done.addAll(r.replaced());
+                    queue.removeIf(done::contains);
                 }
+                return acked;
+            }));
+        });
+        return sent.stream().allMatch(CompletableFuture::join);
+    }
+
+    /**
+     * Packet sent in place of some queued packets
+     *
+     * @param toSend   packet to send
+     * @param replaced queued packets which can be removed from the queue once the packet is acked
+     */
+    record Resend(P2PPacket toSend, List<P2PPacket> replaced) {
+    }
+
+    /**
+     * Merge the queued messages of each room in batches.
+     * <p>
+     * Between two packets which are not messages, the messages are grouped by room and split in batches
+     * which fit in a datagram. The other packets are sent as they are, in their position.
+     * Each queued packet is replaced by exactly one packet to send, even if equal packets are queued more than once.
+     *
+     * @param queued packets in the queue, in order
+     * @return the packets to send, in order, each one with the queued packets it replaces
+     */
+    @VisibleForTesting
+    static List<Resend> coalesce(List<P2PPacket> queued) {
+        List<Resend> res = new ArrayList<>();
+        SequencedMap<UUID, List<MessagePacket>> rooms = new LinkedHashMap<>();
+        for (P2PPacket p : queued) {
+            if (p instanceof MessagePacket mp) {
+                rooms.computeIfAbsent(mp.chatId(), _ -> new ArrayList<>()).add(mp);
+                continue;
+            }
+            flushBatches(rooms, res);
+            res.add(new Resend(p, List.of(p)));
+        }
+        flushBatches(rooms, res);
+        return res;
+    }
+
+    private static void flushBatches(SequencedMap<UUID, List<MessagePacket>> rooms, List<Resend> res) {
+        rooms.forEach((chatId, msgs) -> {
+            for (List<MessagePacket> batch : PacketSize.split(msgs, PacketSize::of, PacketSize.MAX_PACKET_SIZE)) {
+                if (batch.size() == 1)
+                    res.add(new Resend(batch.getFirst(), List.of(batch.getFirst())));
+                else
+                    res.add(new Resend(new MessageBatchPacket(chatId, batch.stream().map(MessagePacket::msg).toList()), List.copyOf(batch)));
             }
+        });
+        rooms.clear();
+    }
+
+    /**
+     * Message of a room
+     *
+     * @param chatId id of the room
+     * @param msgId  id of the message in the room
+     */
+    private record RoomMessage(UUID chatId, MessageId msgId) {
+    }
+
+    /**
+     * @param p a packet
+     * @return the messages contained in the packet
+     */
+    private static List<RoomMessage> roomMessages(P2PPacket p) {
+        return switch (p) {
+            case MessagePacket mp -> List.of(new RoomMessage(mp.chatId(), mp.msg().id()));
+            case DelayedMessagePacket dmp -> List.of(new RoomMessage(dmp.chatId(), dmp.msg().id()));
+            case CloseRoomPacket crp -> List.of(new RoomMessage(crp.chatId(), crp.closeMessage().id()));
+            case MessageBatchPacket mbp -> mbp.msgs().stream().map(m -> new RoomMessage(mbp.chatId(), m.id())).toList();
+            default -> List.of();
+        };
+    }
+
+    /**
+     * @param p a packet
+     * @return the id of the room of the packet, if it refers to a single room
+     */
+    private static Optional<UUID> chatId(P2PPacket p) {
+        return switch (p) {
+            case MessagePacket mp -> Optional.of(mp.chatId());
+            case DelayedMessagePacket dmp -> Optional.of(dmp.chatId());
+            case CloseRoomPacket crp -> Optional.of(crp.chatId());
+            case CreateRoomPacket crp -> Optional.of(crp.id());
+            case MessageBatchPacket mbp -> Optional.of(mbp.chatId());
+            default -> Optional.empty();
+        };
+    }
+
+
+    /**
+     * Send to a peer the vector clocks of the rooms shared with it.
+     * <p>
+     * The peer answers with the messages we are missing (see {@link #handleSyncRequest(SyncRequestPacket)}),
+     * so messages lost while we were disconnected are recovered even if their sender is not online.
+     *
+     * @param id id of the peer
+     */
+    public void requestSync(String id) {
+        Map<UUID, Map<String, Integer>> digest = new HashMap<>();
+        chats.forEach(c -> {
+            if (c.getUsers().contains(id))
+                digest.put(c.getId(), c.getVectorClocks());
+        });
+
+        // Split the digest if it doesn't fit in a single packet
+        var parts = PacketSize.split(digest.keySet(), chatId -> PacketSize.of(new SyncRequestPacket(this.id, Map.of(chatId, digest.get(chatId)))), PacketSize.MAX_PACKET_SIZE);
+        for (List<UUID> part : parts) {
+            Map<UUID, Map<String, Integer>> partDigest = new HashMap<>();
+            part.forEach(chatId -> partDigest.put(chatId, digest.get(chatId)));
+            if (!sendSinglePeer(new SyncRequestPacket(this.id, partDigest), id))
+                return;
         }
-        return true;
     }
 
+    /**
+     * Answer the digest of another peer, sending only the messages it is missing.
+     * <p>
+     * Queued packets which the peer has already received (e.g. from another member) are dropped.
+     * The messages still queued, or already resent to the peer (see {@link #resendQueued(String)}), are not sent
+     * again, since the digest may have been sent before they were received.
+     * Messages which have been compacted can't be sent, but they have already been received by all members.
+     *
+     * @param srp digest of the other peer
+     */
+    public void handleSyncRequest(SyncRequestPacket srp) {
+        String peer = srp.id();
+        var queue = disconnectMsgs.get(peer);
+        if (queue != null && queue.removeIf(p -> isCovered(p, srp.vectorClocks())))
+            LOGGER.info(STR."[\{this.id}] Dropped queued packets already received by \{peer}");
+
+        Set<RoomMessage> alreadySent = new HashSet<>(resent.getOrDefault(peer, Set.of()));
+        if (queue != null)
+            queue.forEach(p -> alreadySent.addAll(roomMessages(p)));
+
+        srp.vectorClocks().forEach((chatId, clocks) -> {
+            ChatRoom chat = chats.get(chatId);
+            if (chat != null && chat.getUsers().contains(peer))
+                sendMissing(chat, chat.getMissingMessages(clocks).stream()
+                        .filter(m -> !alreadySent.contains(new RoomMessage(chatId, m.id())))
+                        .toList(), peer);
+        });
+    }
+
+    /**
+     * Ask the missing predecessors of the messages waiting for more than the given time
+     * to a connected member of their chat, chosen at random.
+     * If the member doesn't have them, another one will be asked at the next call.
+     *
+     * @param threshold minimum time a message must have been waiting for
+     */
+    public void requestMissing(Duration threshold) {
+        for (ChatRoom chat : chats) {
+            var need = chat.getMissingPredecessors(threshold);
+            if (need.isEmpty())
+                continue;
+
+            List<String> members = chat.getUsers().stream()
+                    .filter(u -> !u.equals(this.id) && connectedPeers.contains(u))
+                    .toList();
+            if (members.isEmpty())
+                continue;
+
+            String member = members.get(ThreadLocalRandom.current().nextInt(members.size()));
+            LOGGER.info(STR."[\{this.id}] Asking \{member} missing messages \{need} of chat \{chat.getId()}");
+            sendSinglePeer(new NackPacket(this.id, chat.getId(), chat.getVectorClocks(), need), member);
+        }
+    }
+
+    /**
+     * Answer a request of missing messages, sending the ones we have
+     *
+     * @param np request of the other peer
+     */
+    public void handleNack(NackPacket np) {
+        ChatRoom chat = chats.get(np.chatId());
+        if (chat == null || !chat.getUsers().contains(np.id()))
+            return;
+
+        var missing = chat.getMissingMessages(np.have()).stream()
+                .filter(m -> m.id().clock() <= np.need().getOrDefault(m.sender(), 0))
+                .toList();
+        sendMissing(chat, missing, np.id());
+    }
+
+    /**
+     * Send the given messages of a chat to a peer, in as few packets as possible
+     *
+     * @param chat    chat of the messages
+     * @param missing messages missing to the peer, in delivery order
+     * @param peer    id of the peer
+     */
+    private void sendMissing(ChatRoom chat, List<Message> missing, String peer) {
+        List<StringMessage> msgs = new ArrayList<>();
+        CloseMessage close = null;
+        for (Message m : missing) {
+            if (m.vectorClocks().size() < chat.getUsers().size()) {
+                LOGGER.warn(STR."[\{this.id}] Can't send compacted message \{m.id()} of chat \{chat.getId()} to \{peer}");
+                continue;
+            }
+            switch (m) {
+                case StringMessage sm -> msgs.add(sm);
+                case CloseMessage cm -> close = cm;
+            }
+        }
+        if (!msgs.isEmpty() || close != null)
+            LOGGER.info(STR."[\{this.id}] Sending \{msgs.size()} missing messages of chat \{chat.getId()} to \{peer}");
+
+        for (List<StringMessage> batch : PacketSize.split(msgs, PacketSize::of, PacketSize.MAX_PACKET_SIZE)) {
+            if (!sendSinglePeer(new MessageBatchPacket(chat.getId(), batch), peer))
+                return;
+        }
+        if (close != null)
+            sendSinglePeer(new CloseRoomPacket(chat.getId(), close), peer);
+    }
+
+    /**
+     * @param p      queued packet
+     * @param digest vector clocks of the rooms of a peer
+     * @return true if the packet only contains messages covered by the digest
+     */
+    private static boolean isCovered(P2PPacket p, Map<UUID, Map<String, Integer>> digest) {
+        return switch (p) {
+            case MessagePacket mp -> isCovered(mp.msg(), digest.get(mp.chatId()));
+            case DelayedMessagePacket dmp -> isCovered(dmp.msg(), digest.get(dmp.chatId()));
+            case CloseRoomPacket crp -> isCovered(crp.closeMessage(), digest.get(crp.chatId()));
+            case MessageBatchPacket mbp -> mbp.msgs().stream().allMatch(m -> isCovered(m, digest.get(mbp.chatId())));
+            default -> false;
+        };
+    }
+
+    private static boolean isCovered(Message m, Map<String, Integer> clocks) {
+        return clocks != null && m.id().clock() <= clocks.getOrDefault(m.sender(), 0);
+    }
 
     /**
      * Send a message to the given chat
      * <p>
-     * Sends the message to all users in the given chat.
-     * If the delayedTime param is 0, a {@link MessagePacket} is sent, otherwise a {@link DelayedMessagePacket} is sent.
+     * Sends the message to all users in the given chat, without waiting for them to receive it.
+     * This method can be called concurrently: the messages of a chat get their vector clocks in the order of the
+     * calls, and are handed to the mailbox of each user in the same order (see {@link #sendSequencers}).
+     * In chats where members relay messages, the message is only sent to the first members chosen by the
+     * {@link ChatRoom#getDissemination()} of the chat, which relay it to the others (see {@link #relay(ChatRoom, List)}).
+     * Users which don't receive it recover it when they synchronize with any other member.
      * <p>
-     * Warning: this method is NOT thread-safe.
-     * If it is called simultaneously by two threads, there is no guarantee on the order of the two messages.
+     * A {@link MessagePacket} is sent to the users with a normal connection,
+     * a {@link DelayedMessagePacket} to the ones with a degraded connection.
      *
      * @param msg  the message to be sent
      * @param chat chat where the message is sent
+     * @return the delivery status for each recipient, see {@link #sendPacket(P2PPacket, Set)}
      */
-    public void sendMessage(String msg, ChatRoom chat) {
-        if (!chat.isClosed()) {
+    public Map<String, CompletableFuture<Boolean>> sendMessage(String msg, ChatRoom chat) {
+        Lock sequencer = sendSequencer(chat);
+        sequencer.lock();
+        try {
+            if (chat.isClosed()) {
+                LOGGER.warn("Can't send messages on closed chatrooms!");
+                return Map.of();
+            }
 
             StringMessage m = chat.createLocalMessage(msg, id);
 
             //Send a MessagePacket containing the Message just created to each User of the ChatRoom
-            Set<String> normalPeers = new HashSet<>(chat.getUsers());
+            Set<String> normalPeers = chat.getDissemination().relays()
+                    ? relayTargets(chat, m)
+                    : new HashSet<>(chat.getUsers());
 
             //For testing purposes
             normalPeers.removeAll(degradedConnections.keySet());
-            sendPacket(new MessagePacket(chat.getId(), m), normalPeers);
+            Map<String, CompletableFuture<Boolean>> status = new HashMap<>(sendPacket(new MessagePacket(chat.getId(), m), normalPeers));
 
-            degradedConnections.forEach((u, d) -> sendPacket(new DelayedMessagePacket(chat.getId(), m, d), Set.of(u)));
+            degradedConnections.forEach((u, d) -> status.putAll(sendPacket(new DelayedMessagePacket(chat.getId(), m, d), Set.of(u))));
+            return Collections.unmodifiableMap(status);
+        } finally {
+            sequencer.unlock();
+        }
+    }
 
-        } else {
-            LOGGER.warn("Can't send messages on closed chatrooms!");
+    /**
+     * @return the lock ordering the local messages of the chat, see {@link #sendSequencers}
+     */
+    private Lock sendSequencer(ChatRoom chat) {
+        return sendSequencers.computeIfAbsent(chat.getId(), _ -> new ReentrantLock(true));
+    }
+
+
+    /**
+     * Relay to other members the messages of a chat received for the first time.
+     * <p>
+     * In gossip chats, each message is sent to {@link Dissemination#fanout()} connected members chosen at random,
+     * except its sender: since members only relay the messages they haven't seen yet, each member relays
+     * a message at most once. In tree chats, each message is sent to the children of the local user in the
+     * tree rooted at its sender, see {@link RelayTree}.
+     *
+     * @param chat chat whose members relay messages
+     * @param msgs messages received for the first time
+     */
+    public void relay(ChatRoom chat, List<MessagePacket> msgs) {
+        for (MessagePacket m : msgs) {
+            var targets = relayTargets(chat, m.msg());
+            LOGGER.trace(STR."[\{this.id}] Relaying \{m.msg().id()} of chat \{chat.getId()} to \{targets}");
+            sendPacket(m, targets);
         }
     }
 
+    /**
+     * @param chat chat whose members relay messages
+     * @param m    message sent or relayed by the local user
+     * @return the members the local user sends the message to
+     */
+    private Set<String> relayTargets(ChatRoom chat, Message m) {
+        return switch (chat.getDissemination().strategy()) {
+            case GOSSIP -> gossipTargets(chat, Set.of(m.sender()));
+            case TREE -> new HashSet<>(chat.getRelayTree().children(m.sender(), this.id, this::isRelayReachable));
+            case DIRECT -> new HashSet<>(chat.getUsers());
+        };
+    }
 
-    public void createRoom(String name, Set<String> users) {
+    /**
+     * @param chat    gossip chat
+     * @param exclude members which must not be chosen
+     * @return at most {@link Dissemination#fanout()} connected members of the chat, chosen at random,
+     * excluding the local user and the degraded connections
+     */
+    private Set<String> gossipTargets(ChatRoom chat, Set<String> exclude) {
+        List<String> candidates = new ArrayList<>();
+        for (String u : chat.getUsers()) {
+            if (!u.equals(this.id) && !exclude.contains(u) && isRelayReachable(u))
+                candidates.add(u);
+        }
+        Collections.shuffle(candidates, ThreadLocalRandom.current());
+        return new HashSet<>(candidates.subList(0, Math.min(chat.getDissemination().fanout(), candidates.size())));
+    }
+
+    /**
+     * @return true if messages can be relayed through the given user: it is connected, and not with a degraded connection
+     */
+    private boolean isRelayReachable(String user) {
+        return connectedPeers.contains(user) && !degradedConnections.containsKey(user);
+    }
+
+    public ChatRoom createRoom(String name, Set<String> users) {
+        return createRoom(name, users, Dissemination.direct());
+    }
+
+    /**
+     * Create a new room and inform all its users
+     *
+     * @param name          name of the room
+     * @param users         users of the room, including the local one
+     * @param dissemination how the messages of the room are disseminated to its users
+     * @return the new room
+     */
+    public ChatRoom createRoom(String name, Set<String> users, Dissemination dissemination) {
         LOGGER.info(STR."[\{this.id}] Creating room \{name}");
 
         //Add the ChatRoom to the list of available ChatRooms
-        ChatRoom newRoom = new ChatRoom(name, users, msgChangeListener);
+        UUID roomId = UUID.randomUUID();
+        ChatRoom newRoom = new ChatRoom(name, users, roomId, events::publish, backupManager.newHistory(roomId), dissemination);
         chats.add(newRoom);
 
         //Inform all the users about the creation of the new chat room by sending to them a CreateRoomPacket
-        sendPacket(new CreateRoomPacket(newRoom.getId(), name, users), users);
+        sendPacket(new CreateRoomPacket(newRoom.getId(), name, users, dissemination), users);
 
-        //Fires ADD_ROOM Event in order to update the GUI
-        roomsPropertyChangeSupport.firePropertyChange("ADD_ROOM", null, newRoom);
+        //Publish the new room in order to update the GUI
+        events.publish(new RoomAdded(newRoom));
+        return newRoom;
     }
 
     public void closeRoom(ChatRoom toClose) {
         LOGGER.info(STR."[\{this.id}] Closing room \{toClose.getName()} \{toClose.getId()}");
-        CloseMessage dm = toClose.createCloseMessage(this.id);
-        sendPacket(new CloseRoomPacket(toClose.getId(), dm), toClose.getUsers());
+        Lock sequencer = sendSequencer(toClose);
+        sequencer.lock();
+        try {
+            CloseMessage dm = toClose.createCloseMessage(this.id);
+            sendPacket(new CloseRoomPacket(toClose.getId(), dm), toClose.getUsers());
+        } finally {
+            sequencer.unlock();
+        }
     }
 
     public void deleteRoom(ChatRoom toDelete) {
         LOGGER.info(STR."[\{this.id}] Deleting room \{toDelete.getName()} \{toDelete.getId()}");
-        chats.remove(toDelete);
+        chats.delete(toDelete.getId());
+        sendSequencers.remove(toDelete.getId());
         backupManager.removeChatBackup(toDelete);
     }
 
     /**
-     * Sends the packet to the given peers
+     * Sends the packet to the given peers, without waiting for them to receive it
      * <p>
-     * For each connected peer in the {@link #connectedPeers} set, calls {@link #sendSinglePeer(P2PPacket, String)}.
+     * For each connected peer in the {@link #connectedPeers} set, adds the packet to the mailbox of the peer.
      * For disconnected peers, adds the message to the {@link #disconnectMsgs} queue
      *
      * @param packet packet to be sent
      * @param ids    ids of peers to send to
+     * @return for each peer, a future completed with true when the packet is received, or with false
+     * if it is enqueued in the {@link #disconnectMsgs} queue
      */
-    void sendPacket(P2PPacket packet, Set<String> ids) {
-        Set<Future<?>> sendTasks = new HashSet<>();
+    Map<String, CompletableFuture<Boolean>> sendPacket(P2PPacket packet, Set<String> ids) {
+        Map<String, CompletableFuture<Boolean>> status = new HashMap<>();
         ids.forEach(id -> {
             if (!id.equals(this.id)) {
                 if (connectedPeers.contains(id)) {
-                    sendTasks.add(executorService.submit(() -> {
-                        LOGGER.trace(STR."[\{this.id}] sending \{packet} to \{id}");
-                        sendSinglePeer(packet, id);
-                    }));
+                    LOGGER.trace(STR."[\{this.id}] sending \{packet} to \{id}");
+                    status.put(id, mailbox(id).offer(packet));
                 } else {
                     LOGGER.warn(STR."[\{this.id}] Peer \{id} currently disconnected, enqueuing packet only for him...");
-                    disconnectMsgs.computeIfAbsent(id, _ -> new ConcurrentLinkedQueue<>()).add(packet);
+                    outbox(id).add(packet);
+                    status.put(id, CompletableFuture.completedFuture(false));
                 }
             }
         });
-        sendTasks.forEach(t -> {
-            try {
-                t.get();
-            } catch (InterruptedException | ExecutionException e) {
-                LOGGER.error(STR."[\{this.id}]: Error sending packet \{packet}", e);
-            }
-        });
+        return status;
     }
 
     /**
-     * Send the packet to the given peer
-     * <p>
-     * If the sending fails, adds the message to the {@link #disconnectMsgs} queue
-     * and calls {@link PeerNetManager#onPeerUnreachable(String, Throwable)}
+     * Send the packet to the given peer and wait for it to be received
      *
      * @param packet packet to be sent
      * @param id     id of the peer to send to
      * @return true if the packet is correctly sent (ack received)
      */
     private boolean sendSinglePeer(P2PPacket packet, String id) {
-        try {
-            socketManager.send(packet, ips.get(id));
-            return true;
-        } catch (IOException e) {
-            LOGGER.warn(STR."[\{this.id}] Error sending message to \{id}. Enqueuing it...", e);
-            disconnectMsgs.computeIfAbsent(id, _ -> new ConcurrentLinkedQueue<>()).add(packet);
-            onPeerUnreachable.accept(id, e);
+        return mailbox(id).offer(packet).join();
+    }
+
+    /**
+     * Get the mailbox of a peer, creating it if needed
+     * <p>
+     * If the sending fails, the mailbox adds the packets not sent to the {@link #disconnectMsgs} queue
+     * and calls {@link PeerNetManager#onPeerUnreachable(String, Throwable)}, then the messages of tree chats
+     * are sent around the peer, see {@link #relayAround(String, List)}
+     *
+     * @param id id of the peer
+     * @return the mailbox with the packets to send to the peer
+     */
+    private PeerMailbox mailbox(String id) {
+        return mailboxes.computeIfAbsent(id, _ -> new PeerMailbox(
+                p -> socketManager.sendAsync(p, ips.get(id)),
+                (packets, e) -> {
+                    LOGGER.warn(STR."[\{this.id}] Error sending \{packets.size()} packets to \{id}. Enqueuing them...", e);
+                    // Requests are outdated once the connection is lost, new ones are sent later.
+                    // Packets being resent are still in the queue
+                    var queue = outbox(id);
+                    packets.stream()
+                            .filter(p -> !(p instanceof SyncRequestPacket || p instanceof NackPacket))
+                            .filter(p -> !resending.contains(p))
+                            .forEach(queue::add);
+                    onPeerUnreachable.accept(id, e);
+                    relayAround(id, packets);
+                },
+                executorService));
+    }
+
+    /**
+     * Send the messages of tree chats which a peer didn't receive to its children, which would otherwise
+     * only get them when they synchronize
+     *
+     * @param id      id of the unreachable peer
+     * @param packets packets not received by the peer
+     */
+    private void relayAround(String id, List<P2PPacket> packets) {
+        for (P2PPacket p : packets) {
+            if (!(p instanceof MessagePacket m))
+                continue;
+            ChatRoom chat = chats.get(m.chatId());
+            if (chat == null || chat.getRelayTree() == null)
+                continue;
+            var targets = new HashSet<>(chat.getRelayTree().children(m.msg().sender(), id, this::isRelayReachable));
+            targets.remove(this.id);
+            if (!targets.isEmpty()) {
+                LOGGER.trace(STR."[\{this.id}] Relaying \{m.msg().id()} of chat \{chat.getId()} around \{id} to \{targets}");
+                sendPacket(m, targets);
+            }
         }
-        return false;
+    }
+
+    /**
+     * Get the queue of the packets for a disconnected peer, creating it if needed
+     *
+     * @param id id of the peer
+     * @return the durable queue of the peer
+     * @see BackupManager#newOutbox(String)
+     */
+    private Queue<P2PPacket> outbox(String id) {
+        return disconnectMsgs.computeIfAbsent(id, backupManager::newOutbox);
     }
 
     public void abortDisconnection() {
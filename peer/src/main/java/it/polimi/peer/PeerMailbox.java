@@ -0,0 +1,197 @@
+package it.polimi.peer;
+
+import it.polimi.packets.p2p.P2PPacket;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Ordered outbound queue of the packets sent to a single peer.
+ * <p>
+ * Packets are sent in the order they were offered, keeping up to {@link #WINDOW} packets in flight at the
+ * same time instead of waiting for each ack before sending the next one. A single task waits for the acks,
+ * in order, and sends the queued packets as soon as there is room in the window.
+ * <p>
+ * If a packet is not acked, it is handed to the failure callback together with the other packets in flight
+ * which are not acked and the queued ones, in order, and the mailbox starts over with the packets
+ * offered later.
+ * <p>
+ * This class is thread-safe.
+ */
+class PeerMailbox {
+    /**
+     * Max number of packets waiting for an ack at the same time
+     */
+    static final int WINDOW = 16;
+
+    private record Entry(P2PPacket packet, CompletableFuture<Boolean> status) {
+    }
+
+    private record InFlight(Entry entry, CompletableFuture<Void> ack) {
+    }
+
+    private final Function<P2PPacket, CompletableFuture<Void>> sender;
+    private final BiConsumer<List<P2PPacket>, Throwable> onFailure;
+    private final Executor executor;
+    private final Lock lock;
+    private final Queue<Entry> queue;
+    private final Queue<InFlight> inFlight;
+    private boolean running;
+    /**
+     * True while a failure is handled, packets are only queued
+     */
+    private boolean failing;
+
+    /**
+     * @param sender    sends a packet without blocking, returning a future completed when the packet is acked
+     * @param onFailure called with the packets not sent, in order, and the cause of the failure
+     * @param executor  executor running the task waiting for the acks
+     */
+    PeerMailbox(Function<P2PPacket, CompletableFuture<Void>> sender,
+                BiConsumer<List<P2PPacket>, Throwable> onFailure,
+                Executor executor) {
+        this.sender = sender;
+        this.onFailure = onFailure;
+        this.executor = executor;
+        this.lock = new ReentrantLock();
+        this.queue = new ArrayDeque<>();
+        this.inFlight = new ArrayDeque<>();
+    }
+
+    /**
+     * Send a packet, or queue it if the window is full, without waiting for the ack
+     *
+     * @param packet packet to send
+     * @return a future completed with true when the packet is acked,
+     * or with false if it was handed to the failure callback
+     */
+    CompletableFuture<Boolean> offer(P2PPacket packet) {
+        Entry entry = new Entry(packet, new CompletableFuture<>());
+        lock.lock();
+        try {
+            queue.add(entry);
+            if (!failing)
+                fillWindow();
+            if (running)
+                return entry.status;
+            running = true;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            lock.lock();
+            try {
+                running = false;
+            } finally {
+                lock.unlock();
+            }
+            fail(e);
+        }
+        return entry.status;
+    }
+
+    /**
+     * Wait for the acks of the packets in flight, until there are no more packets to send
+     */
+    private void drain() {
+        while (true) {
+            InFlight head;
+            lock.lock();
+            try {
+                fillWindow();
+                head = inFlight.peek();
+                if (head == null) {
+                    running = false;
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                head.ack.join();
+                lock.lock();
+                try {
+                    inFlight.remove();
+                } finally {
+                    lock.unlock();
+                }
+                head.entry.status.complete(true);
+            } catch (CompletionException ex) {
+                fail(ex.getCause());
+            }
+        }
+    }
+
+    /**
+     * Send the queued packets while there is room in the window. Must be called holding the lock
+     */
+    private void fillWindow() {
+        while (inFlight.size() < WINDOW && !queue.isEmpty()) {
+            Entry e = queue.remove();
+            CompletableFuture<Void> ack;
+            try {
+                ack = sender.apply(e.packet);
+            } catch (RuntimeException ex) {
+                ack = CompletableFuture.failedFuture(ex);
+            }
+            inFlight.add(new InFlight(e, ack));
+        }
+    }
+
+    /**
+     * Hand the packets in flight which are not acked and the queued ones to the failure callback
+     */
+    private void fail(Throwable cause) {
+        List<InFlight> pending;
+        lock.lock();
+        try {
+            failing = true;
+            pending = new ArrayList<>(inFlight);
+            inFlight.clear();
+        } finally {
+            lock.unlock();
+        }
+
+        List<Entry> failed = new ArrayList<>();
+        for (InFlight f : pending) {
+            try {
+                f.ack.join();
+                f.entry.status.complete(true);
+            } catch (CompletionException ex) {
+                failed.add(f.entry);
+            }
+        }
+
+        lock.lock();
+        try {
+            failed.addAll(queue);
+            queue.clear();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            onFailure.accept(failed.stream().map(Entry::packet).toList(), cause);
+        } finally {
+            lock.lock();
+            try {
+                failing = false;
+            } finally {
+                lock.unlock();
+            }
+            failed.forEach(e -> e.status.complete(false));
+        }
+    }
+}
@@ -2,45 +2,76 @@ package it.polimi.peer;
 
 import it.polimi.packets.ByePacket;
 import it.polimi.packets.p2p.HelloPacket;
+import it.polimi.packets.p2p.MessagePacket;
+import it.polimi.packets.p2p.NackPacket;
 import it.polimi.packets.p2p.P2PPacket;
+import it.polimi.packets.p2p.SyncRequestPacket;
+import it.polimi.peer.events.*;
 import it.polimi.peer.exceptions.DiscoveryUnreachableException;
 import org.jetbrains.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.beans.PropertyChangeListener;
-import java.beans.PropertyChangeSupport;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.LinkedList;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.function.Consumer;
 
 
 public class PeerNetManager implements AutoCloseable {
     private static final int DEFAULT_RECONNECT_TIMEOUT_SECONDS = 5;
     private static final int DEFAULT_NETWORK_TIMEOUT_SECONDS = 5;
+    /**
+     * Time after which a message still waiting for its predecessors triggers a {@link NackPacket}
+     */
+    private static final int GAP_TIMEOUT_SECONDS = 10;
+    /**
+     * Max number of peers contacted at the same time by {@link #connectAll(Map)}
+     */
+    private static final int MAX_PARALLEL_CONNECTIONS = 32;
+    /**
+     * Max delay between two attempts to reconnect to a peer, as a multiple of {@link #reconnectTimeoutSeconds}
+     */
+    private static final int MAX_RECONNECT_BACKOFF = 12;
     private static final Logger LOGGER = LoggerFactory.getLogger(PeerNetManager.class);
 
     private final String id;
     protected final SocketAddress discoveryAddr;
     protected final int port;
-    private final Set<ChatRoom> chats;
-    private final PropertyChangeSupport roomsPropertyChangeSupport;
-    private final PropertyChangeSupport usersPropertyChangeSupport;
+    private final RoomRegistry chats;
+    private final EventBus events;
 
     protected final ExecutorService executorService = Executors.newVirtualThreadPerTaskExecutor();
     private final ScheduledExecutorService scheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
-    private volatile ScheduledFuture<?> reconnectTask;
+    private final ReconnectScheduler reconnections;
+    private volatile ScheduledFuture<?> gapCheckTask;
     private final Map<String, SocketAddress> ips;
     private final Set<String> connectedPeers;
     private final Set<String> unreachablePeers;
+    /**
+     * Peers contacted on demand, whose HelloPacket is waiting for an answer
+     */
+    private final Set<String> connecting;
     private PeerSocketManager socketManager;
 
-    private boolean connected;
+    private volatile boolean connected;
+    /**
+     * If true, only the members of the rooms of this peer are contacted, see {@link #connectToMembers(ChatRoom)}
+     */
+    private final boolean lazyConnections;
     private final int reconnectTimeoutSeconds;
     private final int networkTimeoutSeconds;
 
@@ -57,7 +88,8 @@ public class PeerNetManager implements AutoCloseable {
                           PropertyChangeListener chatRoomsChangeListener,
                           PropertyChangeListener usersChangeListener,
                           PropertyChangeListener msgChangeListener) throws IOException {
-        this("localhost", id, port, chatRoomsChangeListener, usersChangeListener, msgChangeListener, 1, 1);
+        this("localhost", id, port, null, false, false, 1, 1);
+        subscribeAndStart(chatRoomsChangeListener, usersChangeListener, msgChangeListener);
     }
 
     /**
@@ -72,49 +104,127 @@ public class PeerNetManager implements AutoCloseable {
      * @param chatRoomsChangeListener listener to call when a room is created
      * @param usersChangeListener     listener to call when a user is connected or disconnected
      * @param msgChangeListener       listener to call when a new message is received
+     * @see PropertyChangeAdapter
      */
     public PeerNetManager(String discoveryAddr, String id, int port,
                           PropertyChangeListener chatRoomsChangeListener,
                           PropertyChangeListener usersChangeListener,
                           PropertyChangeListener msgChangeListener) throws IOException {
-        this(discoveryAddr, id, port, chatRoomsChangeListener, usersChangeListener, msgChangeListener, DEFAULT_RECONNECT_TIMEOUT_SECONDS, DEFAULT_NETWORK_TIMEOUT_SECONDS);
+        this(discoveryAddr, id, port, null, false, false, DEFAULT_RECONNECT_TIMEOUT_SECONDS, DEFAULT_NETWORK_TIMEOUT_SECONDS);
+        subscribeAndStart(chatRoomsChangeListener, usersChangeListener, msgChangeListener);
+    }
+
+    /**
+     * Creates a new peer, delivering its events to a single subscriber.
+     * Bursts of messages of the same room are delivered as a single {@link MessagesAdded} event.
+     * <p>
+     * Tries to recover an existing backup (see {@link BackupManager#getChatsFromBackup()}
+     * and calls {@link #start()}
+     *
+     * @param discoveryAddr address of the discovery server
+     * @param id            unique identifier of the peer
+     * @param port          port to listen on for new connections
+     * @param subscriber    called asynchronously for each event of the peer
+     */
+    public PeerNetManager(String discoveryAddr, String id, int port,
+                          Consumer<? super PeerEvent> subscriber) throws IOException {
+        this(discoveryAddr, id, port, subscriber, false);
     }
 
+    /**
+     * Creates a new peer, delivering its events to a single subscriber.
+     * Bursts of messages of the same room are delivered as a single {@link MessagesAdded} event.
+     * <p>
+     * With lazy connections, the peer only connects to the members of its rooms, instead of all the peers in the
+     * network: the other peers are contacted when they share a room with this one (see {@link #connectToMembers(ChatRoom)}).
+     * <p>
+     * Tries to recover an existing backup (see {@link BackupManager#getChatsFromBackup()}
+     * and calls {@link #start()}
+     *
+     * @param discoveryAddr   address of the discovery server
+     * @param id              unique identifier of the peer
+     * @param port            port to listen on for new connections
+     * @param subscriber      called asynchronously for each event of the peer
+     * @param lazyConnections whether only the members of the rooms of the peer are contacted
+     */
+    public PeerNetManager(String discoveryAddr, String id, int port,
+                          Consumer<? super PeerEvent> subscriber,
+                          boolean lazyConnections) throws IOException {
+        this(discoveryAddr, id, port, subscriber, true, lazyConnections, DEFAULT_RECONNECT_TIMEOUT_SECONDS, DEFAULT_NETWORK_TIMEOUT_SECONDS);
+        start();
+    }
+
+    /**
+     * Creates the peer without starting it
+     *
+     * @param subscriber subscriber of the events, null to subscribe later
+     * @param coalesce        whether bursts of messages are delivered to the subscriber as a single event
+     * @param lazyConnections whether only the members of the rooms of the peer are contacted
+     */
     private PeerNetManager(String discoveryAddr, String id, int port,
-                           PropertyChangeListener chatRoomsChangeListener,
-                           PropertyChangeListener usersChangeListener,
-                           PropertyChangeListener msgChangeListener,
+                           Consumer<? super PeerEvent> subscriber,
+                           boolean coalesce,
+                           boolean lazyConnections,
                            int reconnectTimeoutSeconds,
                            int networkTimeoutSeconds) throws IOException {
         this.id = id;
 
-        backupManager = new BackupManager(id, msgChangeListener);
+        events = new EventBus();
+        if (subscriber != null)
+            events.subscribe(subscriber, coalesce);
+
+        backupManager = new BackupManager(id, events);
         chats = backupManager.getChatsFromBackup();
         ips = new ConcurrentHashMap<>();
         connectedPeers = ConcurrentHashMap.newKeySet();
         unreachablePeers = ConcurrentHashMap.newKeySet();
+        connecting = ConcurrentHashMap.newKeySet();
 
+        this.lazyConnections = lazyConnections;
+        if (lazyConnections)
+            events.subscribe(e -> {
+                if (e instanceof RoomAdded(ChatRoom room))
+                    connectToMembers(room);
+            });
         this.reconnectTimeoutSeconds = reconnectTimeoutSeconds;
         this.networkTimeoutSeconds = networkTimeoutSeconds;
+        this.reconnections = new ReconnectScheduler(scheduledExecutorService, this::reconnect,
+                Duration.ofSeconds(reconnectTimeoutSeconds),
+                Duration.ofSeconds((long) reconnectTimeoutSeconds * MAX_RECONNECT_BACKOFF),
+                MAX_PARALLEL_CONNECTIONS);
 
         this.port = port;
         this.discoveryAddr = new InetSocketAddress(discoveryAddr, 8080);
 
 
-        roomsPropertyChangeSupport = new PropertyChangeSupport(chats);
-        roomsPropertyChangeSupport.addPropertyChangeListener(chatRoomsChangeListener);
+        chatUpdater = new ChatUpdater(socketManager, chats, backupManager, events, this::onHello, this::onPeerDisconnected, this::onSyncRequest, this::onNack, this::onRelay, backupManager.getWaitingMessagesFromBackup(), backupManager.getWaitingCloseMessagesFromBackup());
+        controller = new PeerController(id, chats, ips, connectedPeers, socketManager, events, executorService, backupManager, this::onPeerUnreachable);
 
-        usersPropertyChangeSupport = new PropertyChangeSupport(this);
-        usersPropertyChangeSupport.addPropertyChangeListener(usersChangeListener);
+        if (subscriber != null)
+            publishRestoredRooms();
+    }
 
-        for (ChatRoom c : chats) {
-            roomsPropertyChangeSupport.firePropertyChange("ADD_ROOM", null, c);
-        }
+    /**
+     * Subscribe the listeners through a {@link PropertyChangeAdapter}, publish the restored rooms and start the peer
+     */
+    private void subscribeAndStart(PropertyChangeListener chatRoomsChangeListener,
+                                   PropertyChangeListener usersChangeListener,
+                                   PropertyChangeListener msgChangeListener) throws IOException {
+        events.subscribe(new PropertyChangeAdapter(this, chatRoomsChangeListener, usersChangeListener, msgChangeListener));
+        publishRestoredRooms();
+        start();
+    }
 
-        chatUpdater = new ChatUpdater(socketManager, chats, roomsPropertyChangeSupport, msgChangeListener, this::onPeerConnected, this::onPeerDisconnected, backupManager.getWaitingMessagesFromBackup(), backupManager.getWaitingCloseMessagesFromBackup());
-        controller = new PeerController(id, chats, ips, connectedPeers, socketManager, msgChangeListener, roomsPropertyChangeSupport, executorService, backupManager, this::onPeerUnreachable);
+    private void publishRestoredRooms() {
+        for (ChatRoom c : chats)
+            events.publish(new RoomAdded(c));
+    }
 
-        start();
+    /**
+     * @return the bus where the events of this peer are published
+     */
+    public EventBus getEvents() {
+        return events;
     }
 
     @VisibleForTesting
@@ -153,59 +263,196 @@ public class PeerNetManager implements AutoCloseable {
     }
 
     /**
-     * Connect to peers in the {@link #ips} map.
+     * Connect to peers in the {@link #ips} map (see {@link #connectAll(Map)}), or only to the members of the rooms
+     * of this peer with lazy connections.
      * Call {@link #startReconnectionTask()} to start the reconnection task
      */
     private void connect() {
         //For each peer in the network I try to connect to him by sending a helloPacket
-        ips.forEach((id, addr) -> {
-            try {
-                connectToSinglePeer(id, addr);
-            } catch (IOException e) {
-                onPeerUnreachable(id, e);
-            }
-        });
+        Map<String, SocketAddress> peers = new HashMap<>(ips);
+        if (lazyConnections)
+            peers.keySet().retainAll(getMembers());
+        connectAll(peers);
         connected = true;
         //Try reconnecting to the peers I couldn't connect to previously
         startReconnectionTask();
+        startGapCheckTask();
+    }
+
+    /**
+     * Starts the task which requests the messages missing for too long.
+     * <p>
+     * Every {@link #GAP_TIMEOUT_SECONDS} seconds asks the missing predecessors of the messages which have been
+     * waiting for more than {@link #GAP_TIMEOUT_SECONDS} seconds (see {@link PeerController#requestMissing(Duration)})
+     */
+    private void startGapCheckTask() {
+        gapCheckTask = scheduledExecutorService.scheduleAtFixedRate(
+                () -> executorService.execute(() -> controller.requestMissing(Duration.ofSeconds(GAP_TIMEOUT_SECONDS))),
+                GAP_TIMEOUT_SECONDS, GAP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
     }
 
     /**
      * Starts the reconnection task.
      * <p>
-     * Every {@link #reconnectTimeoutSeconds} seconds tries to reconnect to disconnected peer
-     * (peers in the {@link #unreachablePeers} list)
+     * Tries to reconnect to the disconnected peers (peers in the {@link #unreachablePeers} list, and the ones
+     * which become unreachable later), see {@link ReconnectScheduler}. The first attempt is made after
+     * about {@link #reconnectTimeoutSeconds} seconds, then the delay doubles after each failed attempt, up to
+     * {@link #MAX_RECONNECT_BACKOFF} times {@link #reconnectTimeoutSeconds}.
+     * At most {@link #MAX_PARALLEL_CONNECTIONS} attempts run at the same time.
      */
     private void startReconnectionTask() {
-        //Every 5 seconds retry, until I'm connected with everyone
-        reconnectTask = scheduledExecutorService.scheduleAtFixedRate(() -> unreachablePeers.forEach(id -> {
-            var addr = ips.get(id);
-            LOGGER.info(STR."[\{this.id}] Trying to reconnect to \{id}: \{addr}");
+        reconnections.start(unreachablePeers);
+    }
+
+
+    /**
+     * Connect to the given peers in parallel and send them the queued messages.
+     * <p>
+     * At most {@link #MAX_PARALLEL_CONNECTIONS} HelloPackets are waiting for an ack at the same time, and all
+     * the peers must answer within a single deadline of {@link #networkTimeoutSeconds}, however many they are.
+     * The peers which didn't answer by then, or which couldn't be contacted at all, are marked unreachable,
+     * so that the reconnection task retries them. Then {@link #onPeerConnected(String, SocketAddress)} is
+     * called in parallel for the others.
+     *
+     * @param peers ids and addresses of the peers
+     */
+    private void connectAll(Map<String, SocketAddress> peers) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(networkTimeoutSeconds);
+        Semaphore permits = new Semaphore(MAX_PARALLEL_CONNECTIONS);
+        Map<String, CompletableFuture<Void>> hellos = new HashMap<>();
+        try {
+            for (var peer : peers.entrySet()) {
+                if (!permits.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS))
+                    break;
+                LOGGER.info(STR."[\{this.id}] connecting to \{peer.getKey()}: \{peer.getValue()}");
+                CompletableFuture<Void> hello = socketManager.sendAsync(new HelloPacket(this.id), peer.getValue());
+                hello.whenComplete((_, _) -> permits.release());
+                hellos.put(peer.getKey(), hello);
+            }
+            CompletableFuture.allOf(hellos.values().toArray(CompletableFuture[]::new))
+                    .get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            // Checked for each peer below
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        List<Future<?>> connecting = new ArrayList<>();
+        peers.forEach((id, addr) -> {
+            CompletableFuture<Void> hello = hellos.get(id);
+            if (hello == null)
+                onPeerUnreachable(id, new TimeoutException("Not contacted before the connection deadline"));
+            else if (!hello.isDone())
+                onPeerUnreachable(id, new TimeoutException("No answer before the connection deadline"));
+            else if (hello.isCompletedExceptionally())
+                onPeerUnreachable(id, hello.exceptionNow());
+            else
+                connecting.add(executorService.submit(() -> onPeerConnected(id, addr)));
+        });
+        for (Future<?> f : connecting) {
             try {
-                connectToSinglePeer(id, addr);
-            } catch (IOException e) {
-                LOGGER.warn(STR."[\{this.id}] Failed to reconnect to \{id}", e);
+                f.get();
+            } catch (ExecutionException e) {
+                LOGGER.error(STR."[\{this.id}] Error connecting to a peer", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
             }
-        }), reconnectTimeoutSeconds, reconnectTimeoutSeconds, TimeUnit.SECONDS);
+        }
     }
 
-
     /**
-     * Connect to a peer and send queued message.
+     * Try to reconnect to an unreachable peer, without blocking.
      * <p>
-     * Creates the {@link PeerSocketManager} for the given peer
+     * If the peer answers, {@link #onPeerConnected(String, SocketAddress)} is called asynchronously
      *
-     * @param id   id of the other peer
-     * @param addr address of the other peer
-     * @throws IOException in case of communication problems
+     * @param id id of the other peer
+     * @return a future completed when the peer acks the HelloPacket, or exceptionally if it doesn't
      * @see PeerController#resendQueued(String)
      */
-    private void connectToSinglePeer(String id, SocketAddress addr) throws IOException {
-        LOGGER.info(STR."[\{this.id}] connecting to \{id}: \{addr}");
+    private CompletableFuture<Void> reconnect(String id) {
+        SocketAddress addr = ips.get(id);
+        if (addr == null)
+            return CompletableFuture.failedFuture(new IOException(STR."Unknown address of \{id}"));
+
+        LOGGER.info(STR."[\{this.id}] Trying to reconnect to \{id}: \{addr}");
+        return socketManager.sendAsync(new HelloPacket(this.id), addr).whenComplete((_, e) -> {
+            if (e == null)
+                executorService.execute(() -> onPeerConnected(id, addr));
+            else
+                LOGGER.warn(STR."[\{this.id}] Failed to reconnect to \{id}", e);
+        });
+    }
 
-        socketManager.send(new HelloPacket(this.id), addr);
+    /**
+     * Connect to the members of a room which are not connected yet, without blocking.
+     * <p>
+     * Used with lazy connections, when a room is created or received: the members already known to be unreachable
+     * are left to the reconnection task, the addresses of the ones which never contacted this peer (e.g. registered
+     * after it) are asked to the discovery, see {@link #resolve(Set)}.
+     *
+     * @param room room of this peer
+     */
+    private void connectToMembers(ChatRoom room) {
+        if (!connected)
+            return;
+
+        Set<String> peers = new HashSet<>();
+        for (String user : room.getUsers()) {
+            if (!user.equals(this.id)
+                    && !connectedPeers.contains(user) && !unreachablePeers.contains(user)
+                    && connecting.add(user))
+                peers.add(user);
+        }
+        if (peers.isEmpty())
+            return;
+
+        LOGGER.info(STR."[\{this.id}] Connecting on demand to \{peers}, members of \{room.getId()}");
+        executorService.execute(() -> {
+            try {
+                connectAll(resolve(peers));
+            } finally {
+                connecting.removeAll(peers);
+            }
+        });
+    }
+
+    /**
+     * Find the addresses of the given peers, asking the discovery the ones which are not known yet.
+     * Peers which are not registered to the discovery are left out: the packets for them are forwarded
+     * by the discovery when this peer disconnects.
+     *
+     * @param peers ids of the peers
+     * @return the ids and addresses of the peers with a known address
+     */
+    private Map<String, SocketAddress> resolve(Set<String> peers) {
+        if (!ips.keySet().containsAll(peers)) {
+            try {
+                discovery.lookup().forEach(ips::putIfAbsent);
+            } catch (IOException e) {
+                LOGGER.warn(STR."[\{this.id}] Can't ask the discovery the addresses of \{peers}", e);
+            }
+        }
+
+        Map<String, SocketAddress> addrs = new HashMap<>();
+        for (String peer : peers) {
+            SocketAddress addr = ips.get(peer);
+            if (addr != null)
+                addrs.put(peer, addr);
+            else
+                LOGGER.warn(STR."[\{this.id}] \{peer} is not registered to the discovery, can't connect to it");
+        }
+        return addrs;
+    }
 
-        onPeerConnected(id, addr);
+    /**
+     * @return the other users of the rooms of this peer
+     */
+    private Set<String> getMembers() {
+        Set<String> members = new HashSet<>();
+        chats.forEach(c -> members.addAll(c.getUsers()));
+        members.remove(this.id);
+        return members;
     }
 
     public Map<String, SocketAddress> getIps() {
@@ -228,10 +475,17 @@ public class PeerNetManager implements AutoCloseable {
             return;
         LOGGER.info(STR."[\{this.id}] Disconnecting...");
 
-        reconnectTask.cancel(true);
+        reconnections.stop();
+        gapCheckTask.cancel(true);
 
-        //Send ByePacket to all peer, also unreachable ones. They will be enqueued and forwarded to the discovery
-        controller.sendPacket(new ByePacket(this.id), ips.keySet());
+        //Send ByePacket to all peer, also unreachable ones. They will be enqueued and forwarded to the discovery.
+        //With lazy connections, the peers never contacted don't need it
+        Set<String> byeTo = ips.keySet();
+        if (lazyConnections) {
+            byeTo = new HashSet<>(connectedPeers);
+            byeTo.addAll(unreachablePeers);
+        }
+        controller.sendPacket(new ByePacket(this.id), byeTo).values().forEach(CompletableFuture::join);
 
         try {
             Map<String, Queue<P2PPacket>> enqueued = controller.getDisconnectMsgs();
@@ -241,9 +495,13 @@ public class PeerNetManager implements AutoCloseable {
                 String id = value.getKey();
                 Queue<P2PPacket> queue = value.getValue();
                 if (!queue.isEmpty()) {
-                    discovery.forwardQueue(id, queue);
+                    discovery.forwardQueue(id, new LinkedList<>(queue));
                     LOGGER.info(STR."[\{this.id}] Queue forwarded: \{value}");
                 }
+                // The discovery is now in charge of the packets
+                queue.clear();
+                if (queue instanceof PeerOutbox outbox)
+                    outbox.close();
                 iter.remove();
             }
             discovery.disconnect();
@@ -255,26 +513,24 @@ public class PeerNetManager implements AutoCloseable {
             controller.abortDisconnection();
 
             //2. reconnect to peer that was previously connected
-            connectedPeers.forEach(id -> {
-                try {
-                    connectToSinglePeer(id, ips.get(id));
-                } catch (IOException ex) {
-                    onPeerUnreachable(id, ex);
-                }
-            });
+            Map<String, SocketAddress> previouslyConnected = new HashMap<>();
+            connectedPeers.forEach(id -> previouslyConnected.put(id, ips.get(id)));
+            connectAll(previouslyConnected);
 
             //3. restart reconnection task
             startReconnectionTask();
+            startGapCheckTask();
 
             throw new DiscoveryUnreachableException(e);
         }
 
-        connectedPeers.forEach(id -> usersPropertyChangeSupport.firePropertyChange("USER_DISCONNECTED", id, null));
+        connectedPeers.forEach(id -> events.publish(new UserDisconnected(id)));
         connectedPeers.clear();
         connected = false;
 
         updaterFuture.cancel(true);
         discoveryFuture.cancel(true);
+        chatUpdater.cancelDelayedMessages();
         socketManager.close();
 
         ips.clear();
@@ -291,7 +547,7 @@ public class PeerNetManager implements AutoCloseable {
     /**
      * Method to call when a peer becomes unreachable
      * <p>
-     * Adds the peer to the {@link #unreachablePeers} list
+     * Adds the peer to the {@link #unreachablePeers} list, and schedules the attempts to reconnect to it
      *
      * @param id id of the disconnected peer
      * @param e  cause of the disconnection
@@ -301,8 +557,9 @@ public class PeerNetManager implements AutoCloseable {
 
         unreachablePeers.add(id);
         connectedPeers.remove(id);
+        reconnections.add(id);
 
-        usersPropertyChangeSupport.firePropertyChange("USER_DISCONNECTED", id, null);
+        events.publish(new UserDisconnected(id));
     }
 
     private void onPeerConnected(String id, SocketAddress addr) {
@@ -310,22 +567,72 @@ public class PeerNetManager implements AutoCloseable {
 
         ips.put(id, addr);
         unreachablePeers.remove(id);
+        reconnections.remove(id);
 
-        if (!connectedPeers.contains(id)) {
-            connectedPeers.add(id);
+        // Called concurrently by the connection tasks and the HelloPacket handler: only the first one resends
+        if (connectedPeers.add(id)) {
+            // The digest is sent first, so that the peer can drop what we already have before resending its queue
+            controller.requestSync(id);
             controller.resendQueued(id);
-            usersPropertyChangeSupport.firePropertyChange("USER_CONNECTED", null, id);
+            events.publish(new UserConnected(id));
         }
     }
 
+    /**
+     * Method to call when a peer sends a HelloPacket
+     * <p>
+     * The queued packets are resent asynchronously, so that the chat updater is not blocked
+     *
+     * @param id   id of the other peer
+     * @param addr address of the other peer
+     * @see #onPeerConnected(String, SocketAddress)
+     */
+    private void onHello(String id, SocketAddress addr) {
+        executorService.execute(() -> onPeerConnected(id, addr));
+    }
+
+    /**
+     * Method to call when a peer sends the digest of its rooms
+     * <p>
+     * The answer is sent asynchronously, so that the chat updater is not blocked
+     *
+     * @param srp digest of the rooms of the other peer
+     * @see PeerController#handleSyncRequest(SyncRequestPacket)
+     */
+    private void onSyncRequest(SyncRequestPacket srp) {
+        executorService.execute(() -> controller.handleSyncRequest(srp));
+    }
+
+    /**
+     * Method to call when a peer asks for missing messages
+     *
+     * @param np request of the other peer
+     * @see PeerController#handleNack(NackPacket)
+     */
+    private void onNack(NackPacket np) {
+        executorService.execute(() -> controller.handleNack(np));
+    }
+
+    /**
+     * Method to call when messages of a chat whose members relay messages are received for the first time
+     *
+     * @param chat chat of the messages
+     * @param msgs messages to relay
+     * @see PeerController#relay(ChatRoom, List)
+     */
+    private void onRelay(ChatRoom chat, List<MessagePacket> msgs) {
+        controller.relay(chat, msgs);
+    }
+
     private void onPeerDisconnected(String id) {
         LOGGER.warn(STR."[\{this.id}] \{id} disconnected");
 
         unreachablePeers.remove(id);
+        reconnections.remove(id);
         connectedPeers.remove(id);
         ips.remove(id);
 
-        usersPropertyChangeSupport.firePropertyChange("USER_DISCONNECTED", id, null);
+        events.publish(new UserDisconnected(id));
     }
 
     /**
@@ -334,21 +641,29 @@ public class PeerNetManager implements AutoCloseable {
      * Disconnect from the network, shutdown tasks and backup chats
      *
      * @see #disconnect()
-     * @see BackupManager#backupChats(Set)
+     * @see BackupManager#backupChats(Collection)
      */
     @Override
     public void close() throws DiscoveryUnreachableException {
         disconnect();
+        chatUpdater.close();
         scheduledExecutorService.shutdownNow();
         executorService.shutdownNow();
-        backupManager.backupChats(Collections.unmodifiableSet(chats));
+        backupManager.backupChats(chats.getRooms());
         backupManager.backupWaiting(chatUpdater.getWaitingMessages());
         backupManager.backupWaitingClose(chatUpdater.getWaitingClose());
+        events.close();
     }
 
     public void deletedChat(ChatRoom chat) {
         controller.deleteRoom(chat);
-        chatUpdater.deleteChat(chat.getId());
+    }
+
+    /**
+     * @return the rooms of this peer
+     */
+    public RoomRegistry getRooms() {
+        return chats;
     }
 
     @VisibleForTesting
@@ -0,0 +1,418 @@
+package it.polimi.peer;
+
+import it.polimi.packets.p2p.P2PPacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Durable queue of the packets to send to a peer, stored in an append-only memory-mapped log.
+ * <p>
+ * The log starts with a header with the committed offset, before which all the packets have been
+ * removed from the queue, and the end of the log. Each packet is appended as its length followed by
+ * the serialized packet. Appends are written in the mapped file without forcing it to disk, so they never
+ * wait for the disk, but they survive a crash of the process.
+ * <p>
+ * Packets can be removed in any order, but the committed offset only advances past a prefix of removed
+ * packets: after a restart, packets removed after the first pending one are read again. When the queue is
+ * empty the log starts over from the beginning of the file. When the log must grow but at least half of it is
+ * taken by removed packets, the pending ones are rewritten in a new file instead (see {@link #compact()}), so the
+ * file of a queue which never empties doesn't grow forever.
+ * <p>
+ * If a packet can't be written in the log (e.g. the log reached its max size), it is only kept in memory.
+ * <p>
+ * The iterator works on a snapshot of the queue, its {@code remove} removes the packet from the queue.
+ * This class is thread-safe.
+ */
+public class PeerOutbox extends AbstractQueue<P2PPacket> implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PeerOutbox.class);
+
+    private static final int HEADER_SIZE = 2 * Long.BYTES;
+    private static final int COMMITTED_POS = 0;
+    private static final int END_POS = Long.BYTES;
+    private static final int INITIAL_SIZE = 1 << 16;
+    /**
+     * Offset of the packets which are only kept in memory
+     */
+    private static final int IN_MEMORY = -1;
+
+    /**
+     * Packet in the log
+     *
+     * @param packet packet
+     * @param offset position of the record in the log, {@link #IN_MEMORY} if the packet is not in the log
+     * @param size   size of the record in the log
+     */
+    private record Entry(P2PPacket packet, int offset, int size) {
+        boolean isLogged() {
+            return offset != IN_MEMORY;
+        }
+    }
+
+    private final Path file;
+    private FileChannel channel;
+    private final Lock lock;
+    private final List<Entry> entries;
+    private MappedByteBuffer buffer;
+    private int end;
+    /**
+     * Size of the records of the packets still in the queue
+     */
+    private long liveBytes;
+
+    /**
+     * Open the log in the given file, creating it if needed, and read the packets not committed yet
+     *
+     * @param file file of the log
+     * @throws IOException if the file can't be opened
+     */
+    public PeerOutbox(Path file) throws IOException {
+        this.file = file;
+        this.lock = new ReentrantLock();
+        this.entries = new LinkedList<>();
+
+        Files.createDirectories(file.getParent());
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            boolean empty = channel.size() < HEADER_SIZE;
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), INITIAL_SIZE));
+            if (empty) {
+                this.end = HEADER_SIZE;
+                writeHeader(HEADER_SIZE);
+            } else {
+                load();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Read the records between the committed offset and the end of the log
+     */
+    private void load() {
+        long committed = buffer.getLong(COMMITTED_POS);
+        long storedEnd = buffer.getLong(END_POS);
+        if (storedEnd < HEADER_SIZE || storedEnd > buffer.capacity() || committed < HEADER_SIZE || committed >= storedEnd) {
+            // Empty, or interrupted while starting over
+            end = HEADER_SIZE;
+            writeHeader(HEADER_SIZE);
+            return;
+        }
+
+        end = (int) storedEnd;
+        int pos = (int) committed;
+        while (pos < end) {
+            int length = pos + Integer.BYTES <= end ? buffer.getInt(pos) : -1;
+            if (length <= 0 || pos + Integer.BYTES + length > end) {
+                LOGGER.warn(STR."Corrupted record at \{pos} in outbox \{file}, dropping the following packets");
+                break;
+            }
+            byte[] bytes = new byte[length];
+            buffer.get(pos + Integer.BYTES, bytes);
+            try (ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                entries.add(new Entry((P2PPacket) objectInputStream.readObject(), pos, Integer.BYTES + length));
+                liveBytes += Integer.BYTES + length;
+            } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                LOGGER.warn(STR."Can't read record at \{pos} in outbox \{file}, dropping the following packets", e);
+                break;
+            }
+            pos += Integer.BYTES + length;
+        }
+        end = pos;
+        writeHeader(entries.isEmpty() ? end : entries.getFirst().offset());
+        if (entries.isEmpty())
+            startOver();
+    }
+
+    /**
+     * Append a packet at the end of the log, or keep it only in memory if it can't be written
+     *
+     * @param packet packet to add
+     * @return true
+     */
+    @Override
+    public boolean offer(P2PPacket packet) {
+        Objects.requireNonNull(packet);
+        byte[] bytes = null;
+        try (ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+             ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteArrayOutputStream)) {
+            objectOutputStream.writeObject(packet);
+            objectOutputStream.flush();
+            bytes = byteArrayOutputStream.toByteArray();
+        } catch (IOException e) {
+            LOGGER.error(STR."Can't serialize \{packet} for outbox \{file}, keeping it in memory", e);
+        }
+
+        lock.lock();
+        try {
+            if (bytes == null) {
+                entries.add(new Entry(packet, IN_MEMORY, 0));
+                return true;
+            }
+
+            int size = Integer.BYTES + bytes.length;
+            try {
+                ensureCapacity(size);
+            } catch (IOException e) {
+                LOGGER.error(STR."Can't append to outbox \{file}, keeping the packet in memory", e);
+                entries.add(new Entry(packet, IN_MEMORY, 0));
+                return true;
+            }
+            buffer.putInt(end, bytes.length);
+            buffer.put(end + Integer.BYTES, bytes);
+            entries.add(new Entry(packet, end, size));
+            liveBytes += size;
+            end += size;
+            // The record is complete before it becomes part of the log
+            buffer.putLong(END_POS, end);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public P2PPacket poll() {
+        lock.lock();
+        try {
+            if (entries.isEmpty())
+                return null;
+            Entry e = entries.removeFirst();
+            liveBytes -= e.size();
+            commit();
+            return e.packet();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public P2PPacket peek() {
+        lock.lock();
+        try {
+            return entries.isEmpty() ? null : entries.getFirst().packet();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the packets matching the filter in a single pass, the filter is called holding the lock
+     */
+    @Override
+    public boolean removeIf(Predicate<? super P2PPacket> filter) {
+        lock.lock();
+        try {
+            boolean removed = entries.removeIf(e -> {
+                if (!filter.test(e.packet()))
+                    return false;
+                liveBytes -= e.size();
+                return true;
+            });
+            if (removed)
+                commit();
+            return removed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Iterator<P2PPacket> iterator() {
+        List<Entry> snapshot;
+        lock.lock();
+        try {
+            snapshot = new ArrayList<>(entries);
+        } finally {
+            lock.unlock();
+        }
+
+        return new Iterator<>() {
+            private final Iterator<Entry> iter = snapshot.iterator();
+            private Entry last;
+
+            @Override
+            public boolean hasNext() {
+                return iter.hasNext();
+            }
+
+            @Override
+            public P2PPacket next() {
+                last = iter.next();
+                return last.packet();
+            }
+
+            @Override
+            public void remove() {
+                if (last == null)
+                    throw new IllegalStateException();
+                Entry toRemove = last;
+                last = null;
+                lock.lock();
+                try {
+                    if (entries.remove(toRemove)) {
+                        liveBytes -= toRemove.size();
+                        commit();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        };
+    }
+
+    /**
+     * Force the log to disk and release the file
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            buffer.force();
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.error(STR."Error closing outbox \{file}", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Delete the file of the log, which must be closed
+     */
+    public void delete() {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.error(STR."Error deleting outbox \{file}", e);
+        }
+    }
+
+    /**
+     * Advance the committed offset to the first packet still in the log. Must be called holding the lock
+     */
+    private void commit() {
+        Optional<Entry> first = entries.stream().filter(Entry::isLogged).findFirst();
+        if (first.isEmpty()) {
+            writeHeader(end);
+            startOver();
+        } else {
+            writeHeader(first.get().offset());
+        }
+    }
+
+    /**
+     * Move the end of an empty log back to the beginning. Must be called holding the lock
+     * <p>
+     * The end is moved before the committed offset: if interrupted in between, the committed offset is
+     * after the end, which still means that the log is empty.
+     */
+    private void startOver() {
+        end = HEADER_SIZE;
+        buffer.putLong(END_POS, end);
+        buffer.putLong(COMMITTED_POS, HEADER_SIZE);
+    }
+
+    private void writeHeader(long committed) {
+        buffer.putLong(COMMITTED_POS, committed);
+        buffer.putLong(END_POS, end);
+    }
+
+    /**
+     * Make room for a record at the end of the log, compacting the log if at least half of it is taken by
+     * removed packets, or else growing the mapped file. Must be called holding the lock
+     *
+     * @param recordSize size of the record to append
+     * @throws IOException if the file can't be grown
+     */
+    private void ensureCapacity(int recordSize) throws IOException {
+        if ((long) end + recordSize <= buffer.capacity())
+            return;
+
+        if (end - HEADER_SIZE - liveBytes >= liveBytes) {
+            try {
+                compact();
+            } catch (IOException e) {
+                LOGGER.warn(STR."Can't compact outbox \{file}", e);
+            }
+        }
+        long size = (long) end + recordSize;
+        if (size <= buffer.capacity())
+            return;
+
+        long newSize = Math.max((long) buffer.capacity() * 2, size);
+        if (newSize > Integer.MAX_VALUE)
+            throw new IOException(STR."Outbox \{file} is full");
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+    }
+
+    /**
+     * Rewrite the records of the packets still in the log at the beginning of a new file, which atomically
+     * replaces the log. Must be called holding the lock
+     * <p>
+     * The new file is mapped before it replaces the log, so nothing can fail once the log is replaced.
+     * If interrupted, the old log is still complete.
+     *
+     * @throws IOException if the new file can't be written or can't replace the log, the log is unchanged
+     */
+    private void compact() throws IOException {
+        Path tmp = file.resolveSibling(STR."\{file.getFileName()}.compact");
+        List<Entry> moved = new ArrayList<>(entries.size());
+        int pos = HEADER_SIZE;
+        FileChannel newChannel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer newBuffer;
+        try {
+            newBuffer = newChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_SIZE, HEADER_SIZE + liveBytes));
+            for (Entry e : entries) {
+                if (!e.isLogged()) {
+                    moved.add(e);
+                    continue;
+                }
+                newBuffer.put(pos, buffer, e.offset(), e.size());
+                moved.add(new Entry(e.packet(), pos, e.size()));
+                pos += e.size();
+            }
+            newBuffer.putLong(COMMITTED_POS, HEADER_SIZE);
+            newBuffer.putLong(END_POS, pos);
+            newBuffer.force();
+            // The open channel and its mapping follow the file when it is moved
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            newChannel.close();
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        LOGGER.debug(STR."Compacted outbox \{file} from \{end} to \{pos} bytes");
+
+        channel.close();
+        channel = newChannel;
+        buffer = newBuffer;
+        entries.clear();
+        entries.addAll(moved);
+        end = pos;
+    }
+}
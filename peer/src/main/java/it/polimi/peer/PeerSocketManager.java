@@ -13,6 +13,7 @@ import java.io.InterruptedIOException;
 import java.net.DatagramSocket;
 import java.net.SocketAddress;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -84,6 +85,18 @@ public class PeerSocketManager extends SocketManager {
         doSendAndWaitAck(packet, address);
     }
 
+    /**
+     * Send a packet without waiting for the ack. This method is thread-safe.
+     *
+     * @param packet  packet to be sent
+     * @param address address of the peer
+     * @return a future completed when the ack is received, or exceptionally if the packet can't be sent
+     * or the ack is not received within the timeout
+     */
+    public CompletableFuture<Void> sendAsync(P2PPacket packet, SocketAddress address) {
+        return doSendAsync(packet, address);
+    }
+
     /**
      * Send a packet to the discovery server and wait for an ack. This is a blocking method.
      * This method is thread-safe, only 1 thread at time can send packets.
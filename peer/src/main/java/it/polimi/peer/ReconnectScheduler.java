@@ -0,0 +1,225 @@
+package it.polimi.peer;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Schedules the attempts to reconnect to unreachable peers, each one with its own exponential backoff.
+ * <p>
+ * After each failed attempt the delay before the next one of the same peer doubles, from the initial delay up to
+ * the max one. The actual delay is chosen at random between half the delay and the delay, so that peers which
+ * became unreachable together are not retried together.
+ * <p>
+ * Attempts of different peers run in parallel, with at most {@code maxInFlight} attempts at the same time: the
+ * attempts due when the limit is reached wait for the running ones to complete, in order. The scheduler
+ * thread is only used to schedule the attempts, never to wait for them.
+ * <p>
+ * This class is thread-safe.
+ */
+class ReconnectScheduler {
+    /**
+     * Backoff of a peer
+     *
+     * @param failures number of failed attempts
+     * @param task     next scheduled attempt, null if the attempt is waiting to run or running
+     */
+    private record Backoff(int failures, ScheduledFuture<?> task) {
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final Function<String, CompletableFuture<?>> attempt;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final int maxInFlight;
+    private final Lock lock;
+    private final Map<String, Backoff> peers;
+    private final Queue<String> ready;
+    private int inFlight;
+    private boolean running;
+
+    /**
+     * @param scheduler    executor used to schedule the attempts
+     * @param attempt      tries to reconnect to a peer without blocking, returning a future completed normally
+     *                     if the peer is connected, exceptionally otherwise
+     * @param initialDelay delay before the first attempt
+     * @param maxDelay     max delay between two attempts
+     * @param maxInFlight  max number of attempts running at the same time
+     */
+    ReconnectScheduler(ScheduledExecutorService scheduler,
+                       Function<String, CompletableFuture<?>> attempt,
+                       Duration initialDelay,
+                       Duration maxDelay,
+                       int maxInFlight) {
+        this.scheduler = scheduler;
+        this.attempt = attempt;
+        this.initialDelayMillis = initialDelay.toMillis();
+        this.maxDelayMillis = maxDelay.toMillis();
+        this.maxInFlight = maxInFlight;
+        this.lock = new ReentrantLock();
+        this.peers = new HashMap<>();
+        this.ready = new ArrayDeque<>();
+    }
+
+    /**
+     * Start scheduling the attempts for the given peers and the ones added later
+     *
+     * @param unreachable peers to reconnect to
+     */
+    void start(Collection<String> unreachable) {
+        lock.lock();
+        try {
+            running = true;
+            unreachable.forEach(this::add);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Schedule the attempts to reconnect to a peer, if they are not already scheduled.
+     * Ignored if the scheduler is stopped.
+     *
+     * @param id id of the unreachable peer
+     */
+    void add(String id) {
+        lock.lock();
+        try {
+            if (running && !peers.containsKey(id))
+                scheduleAttempt(id, 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop the attempts to reconnect to a peer, because it is connected
+     *
+     * @param id id of the peer
+     */
+    void remove(String id) {
+        lock.lock();
+        try {
+            Backoff b = peers.remove(id);
+            if (b != null && b.task() != null)
+                b.task().cancel(false);
+            ready.remove(id);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop all the attempts, the running ones complete but are not retried
+     */
+    void stop() {
+        lock.lock();
+        try {
+            running = false;
+            peers.values().forEach(b -> {
+                if (b.task() != null)
+                    b.task().cancel(false);
+            });
+            peers.clear();
+            ready.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the ids of the peers with scheduled attempts
+     */
+    Set<String> getScheduled() {
+        lock.lock();
+        try {
+            return Set.copyOf(peers.keySet());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param failures number of failed attempts
+     * @return the delay before the next attempt, with jitter
+     */
+    long delayMillis(int failures) {
+        long delay = initialDelayMillis;
+        for (int i = 0; i < failures && delay < maxDelayMillis; i++)
+            delay *= 2;
+        delay = Math.min(delay, maxDelayMillis);
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Must be called holding the lock
+     */
+    private void scheduleAttempt(String id, int failures) {
+        try {
+            ScheduledFuture<?> task = scheduler.schedule(() -> onDue(id), delayMillis(failures), TimeUnit.MILLISECONDS);
+            peers.put(id, new Backoff(failures, task));
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            peers.remove(id);
+        }
+    }
+
+    private void onDue(String id) {
+        lock.lock();
+        try {
+            Backoff b = peers.get(id);
+            // Removed, or already due because the peer was removed and added again
+            if (b == null || b.task() == null)
+                return;
+            peers.put(id, new Backoff(b.failures(), null));
+            ready.add(id);
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Run the attempts waiting while there is room. Must be called holding the lock
+     */
+    private void dispatch() {
+        while (inFlight < maxInFlight && !ready.isEmpty()) {
+            String id = ready.remove();
+            inFlight++;
+            CompletableFuture<?> res;
+            try {
+                res = attempt.apply(id);
+            } catch (RuntimeException e) {
+                res = CompletableFuture.failedFuture(e);
+            }
+            res.whenComplete((_, e) -> onAttemptDone(id, e == null));
+        }
+    }
+
+    private void onAttemptDone(String id, boolean connected) {
+        lock.lock();
+        try {
+            inFlight--;
+            Backoff b = peers.get(id);
+            // Removed or stopped in the meantime
+            if (b != null && b.task() == null) {
+                if (connected)
+                    peers.remove(id);
+                else
+                    scheduleAttempt(id, b.failures() + 1);
+            }
+            if (running)
+                dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package it.polimi.peer;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Dissemination tree of the members of a chatroom, used by {@link it.polimi.packets.p2p.Dissemination.Strategy#TREE}.
+ * <p>
+ * The tree of the messages of a member is a complete tree with {@code fanout} children per node, built on the
+ * sorted ids of the members rotated so that the sender is the root: every member computes the same tree without
+ * exchanging anything, and the members forwarding messages change with the sender.
+ * <p>
+ * A member which is not reachable is skipped: its parent forwards the messages directly to its children.
+ * <p>
+ * This class is immutable.
+ */
+final class RelayTree {
+    private final List<String> members;
+    private final Map<String, Integer> positions;
+    private final int fanout;
+
+    /**
+     * @param members members of the chatroom
+     * @param fanout  number of children of each member
+     */
+    RelayTree(Collection<String> members, int fanout) {
+        if (fanout < 1)
+            throw new IllegalArgumentException(STR."Invalid fanout \{fanout}");
+        this.members = members.stream().sorted().toList();
+        this.positions = new HashMap<>();
+        for (int i = 0; i < this.members.size(); i++)
+            positions.put(this.members.get(i), i);
+        this.fanout = fanout;
+    }
+
+    /**
+     * @param root      sender of the message, root of the tree
+     * @param member    member forwarding the message
+     * @param reachable members the message can be sent to
+     * @return the members the given one forwards the messages of the root to: its children, or the children of
+     * the ones which are not reachable, recursively. Empty if the root or the member are not in the chatroom
+     */
+    Set<String> children(String root, String member, Predicate<String> reachable) {
+        Integer rootPos = positions.get(root);
+        Integer memberPos = positions.get(member);
+        if (rootPos == null || memberPos == null)
+            return Set.of();
+
+        int n = members.size();
+        Set<String> children = new HashSet<>();
+        Deque<Integer> toVisit = new ArrayDeque<>();
+        addChildren(toVisit, Math.floorMod(memberPos - rootPos, n), n);
+        while (!toVisit.isEmpty()) {
+            int node = toVisit.pop();
+            String child = members.get((node + rootPos) % n);
+            if (reachable.test(child))
+                children.add(child);
+            else
+                addChildren(toVisit, node, n);
+        }
+        return children;
+    }
+
+    /**
+     * Add the positions, relative to the root, of the children of the given node
+     */
+    private void addChildren(Deque<Integer> toVisit, int node, int n) {
+        for (long c = (long) node * fanout + 1; c <= (long) node * fanout + fanout && c < n; c++)
+            toVisit.push((int) c);
+    }
+}
@@ -0,0 +1,74 @@
+package it.polimi.peer;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rooms of a peer, indexed by their id.
+ * <p>
+ * The registry also remembers the ids of the rooms deleted by the user, so that messages
+ * still arriving for them can be discarded.
+ * This class is thread-safe, its iterator is weakly consistent.
+ */
+public class RoomRegistry implements Iterable<ChatRoom> {
+    private final Map<UUID, ChatRoom> rooms;
+    private final Set<UUID> deletedRooms;
+
+    public RoomRegistry() {
+        this.rooms = new ConcurrentHashMap<>();
+        this.deletedRooms = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Add a room, unless a room with the same id is already present
+     *
+     * @param room room to add
+     * @return true if the room was added
+     */
+    public boolean add(ChatRoom room) {
+        return rooms.putIfAbsent(room.getId(), room) == null;
+    }
+
+    /**
+     * @param id id of the room
+     * @return the room with the given id, or null if it is not present
+     */
+    public ChatRoom get(UUID id) {
+        return rooms.get(id);
+    }
+
+    /**
+     * Remove a room, remembering it has been deleted
+     *
+     * @param id id of the room
+     * @return the removed room, or null if it was not present
+     */
+    public ChatRoom delete(UUID id) {
+        deletedRooms.add(id);
+        return rooms.remove(id);
+    }
+
+    /**
+     * @param id id of the room
+     * @return true if the room has been deleted
+     */
+    public boolean isDeleted(UUID id) {
+        return deletedRooms.contains(id);
+    }
+
+    /**
+     * @return a read-only view of the rooms
+     */
+    public Collection<ChatRoom> getRooms() {
+        return Collections.unmodifiableCollection(rooms.values());
+    }
+
+    public int size() {
+        return rooms.size();
+    }
+
+    @Override
+    public Iterator<ChatRoom> iterator() {
+        return getRooms().iterator();
+    }
+}
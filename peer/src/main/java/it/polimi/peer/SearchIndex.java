@@ -0,0 +1,179 @@
+package it.polimi.peer;
+
+import it.polimi.messages.MessageId;
+import it.polimi.messages.StringMessage;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index of the text messages of a chat.
+ * <p>
+ * Each indexed message gets a sequential document number; for each token the index keeps the sorted
+ * array of the documents containing it, and for each document the id of its message.
+ * A query returns the messages containing all its tokens, scanning only the shortest posting list,
+ * so its cost depends on the rarest token and not on the size of the history.
+ * <p>
+ * Tokens are the maximal sequences of letters and digits, compared ignoring case.
+ * This class is thread-safe.
+ */
+public class SearchIndex {
+
+    /**
+     * Growable array of document numbers, in increasing order
+     */
+    private static final class Postings {
+        private int[] docs = new int[4];
+        private int size;
+
+        private void add(int doc) {
+            if (size == docs.length)
+                docs = Arrays.copyOf(docs, size * 2);
+            docs[size++] = doc;
+        }
+    }
+
+    private final ReadWriteLock lock;
+    private final Map<String, Postings> postings;
+    private final Map<String, Integer> senderIndexes;
+    private final List<String> senders;
+    private int[] docSenders;
+    private int[] docClocks;
+    private int docs;
+
+    public SearchIndex() {
+        this.lock = new ReentrantReadWriteLock();
+        this.postings = new HashMap<>();
+        this.senderIndexes = new HashMap<>();
+        this.senders = new ArrayList<>();
+        this.docSenders = new int[64];
+        this.docClocks = new int[64];
+    }
+
+    /**
+     * Add a message to the index
+     *
+     * @param m message to index
+     */
+    public void add(StringMessage m) {
+        Set<String> tokens = tokenize(m.msg());
+        MessageId id = m.id();
+
+        lock.writeLock().lock();
+        try {
+            int doc = docs++;
+            if (doc == docSenders.length) {
+                docSenders = Arrays.copyOf(docSenders, doc * 2);
+                docClocks = Arrays.copyOf(docClocks, doc * 2);
+            }
+            docSenders[doc] = senderIndexes.computeIfAbsent(id.sender(), s -> {
+                senders.add(s);
+                return senders.size() - 1;
+            });
+            docClocks[doc] = id.clock();
+            for (String token : tokens)
+                postings.computeIfAbsent(token, _ -> new Postings()).add(doc);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Find the messages containing all the words of the query
+     *
+     * @param query words to search
+     * @return the ids of the matching messages, in the order they were indexed
+     */
+    public List<MessageId> search(String query) {
+        return search(query, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Find the most recent messages containing all the words of the query.
+     * <p>
+     * The shortest posting list is scanned backwards and each document is looked up in the other lists
+     * with a binary search, stopping once enough matches are found.
+     *
+     * @param query words to search
+     * @param limit max number of results
+     * @return the ids of the last {@code limit} matching messages, in the order they were indexed
+     */
+    public List<MessageId> search(String query, int limit) {
+        Set<String> tokens = tokenize(query);
+        if (tokens.isEmpty() || limit <= 0)
+            return List.of();
+
+        lock.readLock().lock();
+        try {
+            List<Postings> lists = new ArrayList<>(tokens.size());
+            for (String token : tokens) {
+                Postings p = postings.get(token);
+                if (p == null)
+                    return List.of();
+                lists.add(p);
+            }
+            lists.sort(Comparator.comparingInt(p -> p.size));
+
+            Postings shortest = lists.getFirst();
+            // Upper bound of the search range in each list, documents are scanned in decreasing order
+            int[] bounds = new int[lists.size()];
+            for (int j = 1; j < lists.size(); j++)
+                bounds[j] = lists.get(j).size;
+
+            int[] found = new int[Math.min(limit, shortest.size)];
+            int size = 0;
+            for (int i = shortest.size - 1; i >= 0 && size < found.length; i--) {
+                int doc = shortest.docs[i];
+                boolean inAll = true;
+                for (int j = 1; j < lists.size() && inAll; j++) {
+                    int pos = Arrays.binarySearch(lists.get(j).docs, 0, bounds[j], doc);
+                    inAll = pos >= 0;
+                    bounds[j] = inAll ? pos : -pos - 1;
+                }
+                if (inAll)
+                    found[size++] = doc;
+            }
+
+            List<MessageId> ids = new ArrayList<>(size);
+            for (int i = size - 1; i >= 0; i--) {
+                int doc = found[i];
+                ids.add(new MessageId(senders.get(docSenders[doc]), docClocks[doc]));
+            }
+            return ids;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of indexed messages
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return docs;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param text text to split
+     * @return the distinct tokens of the text, lower case
+     */
+    static Set<String> tokenize(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inToken = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inToken && start < 0) {
+                start = i;
+            } else if (!inToken && start >= 0) {
+                tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,171 @@
+package it.polimi.peer.events;
+
+import it.polimi.messages.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Asynchronous bus for the events of a peer.
+ * <p>
+ * Each subscriber has its own queue, drained on a virtual thread: publishing never blocks and never runs
+ * subscriber code, so a slow subscriber only delays its own events. Each subscriber receives the events
+ * one at a time, in the order they were published.
+ * <p>
+ * A coalescing subscriber receives the consecutive {@link MessagesAdded} events of the same room which
+ * accumulated in its queue as a single event.
+ */
+public class EventBus implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventBus.class);
+
+    private final Set<Subscription> subscriptions;
+    private final ExecutorService executor;
+
+    public EventBus() {
+        this.subscriptions = ConcurrentHashMap.newKeySet();
+        this.executor = Executors.newVirtualThreadPerTaskExecutor();
+    }
+
+    /**
+     * Events queued for a subscriber
+     */
+    public final class Subscription implements AutoCloseable {
+        private final Consumer<? super PeerEvent> subscriber;
+        private final boolean coalesce;
+        private final Queue<PeerEvent> queue;
+        private final AtomicBoolean draining;
+
+        private Subscription(Consumer<? super PeerEvent> subscriber, boolean coalesce) {
+            this.subscriber = subscriber;
+            this.coalesce = coalesce;
+            this.queue = new ConcurrentLinkedQueue<>();
+            this.draining = new AtomicBoolean();
+        }
+
+        private void offer(PeerEvent event) {
+            queue.add(event);
+            if (draining.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    draining.set(false);
+                }
+            }
+        }
+
+        /**
+         * Deliver the queued events, until the queue is empty
+         */
+        private void drain() {
+            do {
+                try {
+                    List<PeerEvent> events = new ArrayList<>();
+                    PeerEvent e;
+                    while ((e = queue.poll()) != null)
+                        events.add(e);
+
+                    for (PeerEvent event : coalesce ? coalesce(events) : events) {
+                        try {
+                            subscriber.accept(event);
+                        } catch (RuntimeException ex) {
+                            LOGGER.error(STR."Unexpected error in subscriber for event \{event}", ex);
+                        }
+                    }
+                } finally {
+                    draining.set(false);
+                }
+                // Events published after the queue was emptied but before releasing the flag
+            } while (!queue.isEmpty() && draining.compareAndSet(false, true));
+        }
+
+        /**
+         * Stop receiving events, the ones already queued are dropped
+         */
+        @Override
+        public void close() {
+            subscriptions.remove(this);
+            queue.clear();
+        }
+    }
+
+    /**
+     * Subscribe to all the events
+     *
+     * @param subscriber called for each event
+     * @return the subscription, to be closed to unsubscribe
+     */
+    public Subscription subscribe(Consumer<? super PeerEvent> subscriber) {
+        return subscribe(subscriber, false);
+    }
+
+    /**
+     * Subscribe to all the events
+     *
+     * @param subscriber called for each event
+     * @param coalesce   if true, bursts of messages of the same room are delivered as a single event
+     * @return the subscription, to be closed to unsubscribe
+     */
+    public Subscription subscribe(Consumer<? super PeerEvent> subscriber, boolean coalesce) {
+        Subscription s = new Subscription(subscriber, coalesce);
+        subscriptions.add(s);
+        return s;
+    }
+
+    /**
+     * Queue the event for all the subscribers
+     *
+     * @param event event to publish
+     */
+    public void publish(PeerEvent event) {
+        for (Subscription s : subscriptions)
+            s.offer(event);
+    }
+
+    /**
+     * Merge the consecutive events with messages of the same room
+     */
+    private static List<PeerEvent> coalesce(List<PeerEvent> events) {
+        List<PeerEvent> res = new ArrayList<>(events.size());
+        List<Message> msgs = null;
+        MessagesAdded first = null;
+        for (PeerEvent e : events) {
+            if (first != null && e instanceof MessagesAdded ma && ma.room() == first.room()) {
+                if (msgs == null)
+                    msgs = new ArrayList<>(first.messages());
+                msgs.addAll(ma.messages());
+                continue;
+            }
+            if (first != null)
+                res.add(msgs == null ? first : new MessagesAdded(first.room(), msgs));
+            first = null;
+            msgs = null;
+            if (e instanceof MessagesAdded ma)
+                first = ma;
+            else
+                res.add(e);
+        }
+        if (first != null)
+            res.add(msgs == null ? first : new MessagesAdded(first.room(), msgs));
+        return res;
+    }
+
+    /**
+     * Stop accepting events, the ones already queued are still delivered
+     */
+    @Override
+    public void close() {
+        subscriptions.clear();
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,18 @@
+package it.polimi.peer.events;
+
+import it.polimi.messages.Message;
+import it.polimi.peer.ChatRoom;
+
+import java.util.List;
+
+/**
+ * Messages delivered to a room, in delivery order
+ *
+ * @param room     room of the messages
+ * @param messages delivered messages
+ */
+public record MessagesAdded(ChatRoom room, List<Message> messages) implements PeerEvent {
+    public MessagesAdded {
+        messages = List.copyOf(messages);
+    }
+}
@@ -0,0 +1,7 @@
+package it.polimi.peer.events;
+
+/**
+ * Event published by a peer on its {@link EventBus}
+ */
+public sealed interface PeerEvent permits RoomAdded, UserConnected, UserDisconnected, MessagesAdded {
+}
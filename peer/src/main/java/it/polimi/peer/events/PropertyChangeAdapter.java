@@ -0,0 +1,59 @@
+package it.polimi.peer.events;
+
+import it.polimi.peer.utility.MessageGUI;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Subscriber forwarding the events to {@link PropertyChangeListener}s, with the property names used before
+ * the {@link EventBus}:
+ * <ul>
+ *     <li>"ADD_ROOM", with the new room as new value</li>
+ *     <li>"USER_CONNECTED", with the id of the peer as new value</li>
+ *     <li>"USER_DISCONNECTED", with the id of the peer as old value</li>
+ *     <li>"ADD_MSG", with a {@link MessageGUI} as new value, or "ADD_MSGS" with a list of them for messages
+ *     delivered in bulk</li>
+ * </ul>
+ * A single adapter keeps the order of the events among the three listeners.
+ */
+public class PropertyChangeAdapter implements Consumer<PeerEvent> {
+    private final Object source;
+    private final PropertyChangeListener roomsListener;
+    private final PropertyChangeListener usersListener;
+    private final PropertyChangeListener msgListener;
+
+    /**
+     * @param source        source of the events
+     * @param roomsListener listener to call when a room is added
+     * @param usersListener listener to call when a user is connected or disconnected
+     * @param msgListener   listener to call when messages are delivered
+     */
+    public PropertyChangeAdapter(Object source,
+                                 PropertyChangeListener roomsListener,
+                                 PropertyChangeListener usersListener,
+                                 PropertyChangeListener msgListener) {
+        this.source = source;
+        this.roomsListener = roomsListener;
+        this.usersListener = usersListener;
+        this.msgListener = msgListener;
+    }
+
+    @Override
+    public void accept(PeerEvent event) {
+        switch (event) {
+            case RoomAdded ra -> roomsListener.propertyChange(new PropertyChangeEvent(source, "ADD_ROOM", null, ra.room()));
+            case UserConnected uc -> usersListener.propertyChange(new PropertyChangeEvent(source, "USER_CONNECTED", null, uc.id()));
+            case UserDisconnected ud -> usersListener.propertyChange(new PropertyChangeEvent(source, "USER_DISCONNECTED", ud.id(), null));
+            case MessagesAdded ma -> {
+                List<MessageGUI> msgs = ma.messages().stream().map(m -> new MessageGUI(m, ma.room())).toList();
+                if (msgs.size() == 1)
+                    msgListener.propertyChange(new PropertyChangeEvent(source, "ADD_MSG", null, msgs.getFirst()));
+                else
+                    msgListener.propertyChange(new PropertyChangeEvent(source, "ADD_MSGS", null, msgs));
+            }
+        }
+    }
+}
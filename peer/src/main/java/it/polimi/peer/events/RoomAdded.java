@@ -0,0 +1,11 @@
+package it.polimi.peer.events;
+
+import it.polimi.peer.ChatRoom;
+
+/**
+ * A room has been created or restored from a backup
+ *
+ * @param room the new room
+ */
+public record RoomAdded(ChatRoom room) implements PeerEvent {
+}
@@ -0,0 +1,7 @@
+package it.polimi.peer.events;
+
+/**
+ * @param id id of the peer which is now connected
+ */
+public record UserConnected(String id) implements PeerEvent {
+}
@@ -0,0 +1,7 @@
+package it.polimi.peer.events;
+
+/**
+ * @param id id of the peer which has disconnected or is unreachable
+ */
+public record UserDisconnected(String id) implements PeerEvent {
+}
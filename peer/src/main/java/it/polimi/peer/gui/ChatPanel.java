@@ -1,11 +1,16 @@
 package it.polimi.peer.gui;
 
 import it.polimi.messages.CloseMessage;
+import it.polimi.messages.Message;
+import it.polimi.messages.MessageId;
 import it.polimi.peer.ChatRoom;
 import it.polimi.peer.PeerController;
 import it.polimi.peer.PeerNetManager;
+import it.polimi.peer.events.MessagesAdded;
+import it.polimi.peer.events.RoomAdded;
+import it.polimi.peer.events.UserConnected;
+import it.polimi.peer.events.UserDisconnected;
 import it.polimi.peer.exceptions.DiscoveryUnreachableException;
-import it.polimi.peer.utility.MessageGUI;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -13,16 +18,24 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
-import java.util.Objects;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class ChatPanel {
     private static final Logger LOGGER = LoggerFactory.getLogger(ChatPanel.class);
 
     private static final int MAX_MSG_SIZE = 1000;
+    /**
+     * Number of messages loaded when a chat is shown, and when scrolling back to older messages
+     */
+    private static final int PAGE_SIZE = 200;
 
     private JPanel panel;
     private JTextArea msgArea;
@@ -45,6 +58,19 @@ public class ChatPanel {
     private final ExecutorService executorService = Executors.newCachedThreadPool();
 
     private final DefaultListModel<MessageBubble> msgListModel = new DefaultListModel<>();
+    /**
+     * Position in the history of the selected chat of the first message shown
+     */
+    private int firstShownMsg;
+    /**
+     * True while older messages are loaded, accessed only on the EDT
+     */
+    private boolean loadingPrevious;
+    /**
+     * Messages of the selected chat added while its latest page is loaded, null if it is not being loaded.
+     * Accessed only on the EDT
+     */
+    private List<Message> addedWhileLoading;
 
     public ChatPanel(JFrame frame, String discovery, String user, int port) {
         //Want to create a new Group for chatting
@@ -92,16 +118,7 @@ public class ChatPanel {
                 if (chatRooms.getItemCount() > 0 && chatRooms.getSelectedItem() != null) {
                     ChatRoom chat = (ChatRoom) chatRooms.getSelectedItem();
                     chatLabel.setText(STR."Chat: \{(chat).getName()}");
-                    msgListModel.clear();
-                    msgListModel.addAll((chat).getReceivedMsgs().stream().map(m -> {
-                        if (m instanceof CloseMessage)
-                            return new CloseChatBubble(m.sender(), detailedViewCheckBox.isSelected() ? m.toDetailedString() : m.toString());
-                        else if (m.sender().equals(user))
-                            return new RightArrowBubble(detailedViewCheckBox.isSelected() ? m.toDetailedString() : m.toString());
-                        else
-                            return new LeftArrowBubble(m.sender(), detailedViewCheckBox.isSelected() ? m.toDetailedString() : m.toString());
-                    }).toList());
-                    msgList.ensureIndexIsVisible(msgListModel.size() - 1);
+                    showLatestMessages(chat, user);
 
                     sendButton.setEnabled(!chat.isClosed());
                     deleteButton.setEnabled(true);
@@ -113,6 +130,7 @@ public class ChatPanel {
                     sendButton.setEnabled(false);
                     deleteButton.setEnabled(false);
                     chatLabel.setText("Chat: -");
+                    addedWhileLoading = null;
                     msgListModel.clear();
                 }
             }
@@ -167,6 +185,13 @@ public class ChatPanel {
         msgList.setCellRenderer((list, value, index, isSelected, cellHasFocus) -> value);
         msgList.setModel(msgListModel);
 
+        //Load older messages when scrolling to the top
+        JScrollPane msgScrollPane = (JScrollPane) SwingUtilities.getAncestorOfClass(JScrollPane.class, msgList);
+        msgScrollPane.getVerticalScrollBar().addAdjustmentListener(e -> {
+            if (!e.getValueIsAdjusting() && e.getValue() == 0 && firstShownMsg > 0 && chatRooms.getSelectedItem() != null)
+                showPreviousMessages((ChatRoom) chatRooms.getSelectedItem(), user);
+        });
+
         DefaultListModel<String> connectedModelList = new DefaultListModel<>();
         connectedList.setModel(connectedModelList);
 
@@ -193,34 +218,32 @@ public class ChatPanel {
 
         executorService.execute(() -> {
             try {
+                // Bursts of messages are coalesced by the peer, so the GUI is updated once per burst
                 peerNetManager = new PeerNetManager(discovery, user, port, evt -> SwingUtilities.invokeLater(() -> {
-                    if (evt.getPropertyName().equals("ADD_ROOM")) {
-                        ChatRoom chat = (ChatRoom) evt.getNewValue();
-                        LOGGER.info(STR."Room \{chat} added in gui");
-                        chatRooms.addItem(chat);
-                    }
-                }), evt -> SwingUtilities.invokeLater(() -> {
-                    if (evt.getPropertyName().equals("USER_CONNECTED")) {
-                        connectedModelList.addElement((String) evt.getNewValue());
-                    } else {
-                        connectedModelList.removeElement(evt.getOldValue());
-                    }
-                }), evt -> SwingUtilities.invokeLater(() -> {
-                    if (evt.getPropertyName().equals("ADD_MSG")) {
-                        MessageGUI mgui = (MessageGUI) evt.getNewValue();
-
-                        LOGGER.info(STR."Msg \{mgui} added in gui");
-
-                        if (((ChatRoom) Objects.requireNonNull(chatRooms.getSelectedItem())).getId().equals(mgui.chatRoom().getId())) {
-                            if (mgui.message() instanceof CloseMessage cm)
-                                msgListModel.addElement(new CloseChatBubble(cm.sender(), detailedViewCheckBox.isSelected() ? cm.toDetailedString() : cm.toString()));
-                            else if (mgui.message().sender().equals(user))
-                                msgListModel.addElement(new RightArrowBubble(detailedViewCheckBox.isSelected() ? mgui.message().toDetailedString() : mgui.message().toString()));
-                            else
-                                msgListModel.addElement(new LeftArrowBubble(mgui.message().sender(), detailedViewCheckBox.isSelected() ? mgui.message().toDetailedString() : mgui.message().toString()));
+                    switch (evt) {
+                        case RoomAdded(ChatRoom chat) -> {
+                            LOGGER.info(STR."Room \{chat} added in gui");
+                            // Rooms published while the peer is starting are shown once it has started
+                            if (peerNetManager != null)
+                                refreshRooms();
+                        }
+                        case UserConnected(String id) -> connectedModelList.addElement(id);
+                        case UserDisconnected(String id) -> connectedModelList.removeElement(id);
+                        case MessagesAdded(ChatRoom chat, List<Message> msgs) -> {
+                            LOGGER.info(STR."\{msgs.size()} msgs added in gui");
+
+                            ChatRoom selected = (ChatRoom) chatRooms.getSelectedItem();
+                            if (selected == null || !selected.getId().equals(chat.getId()))
+                                return;
+                            if (addedWhileLoading != null) {
+                                // They may or may not be in the page being loaded
+                                addedWhileLoading.addAll(msgs);
+                                return;
+                            }
+                            msgListModel.addAll(msgs.stream().map(m -> createBubble(m, user)).toList());
                             msgList.ensureIndexIsVisible(msgListModel.size() - 1);
 
-                            if (mgui.message() instanceof CloseMessage) {
+                            if (msgs.stream().anyMatch(m -> m instanceof CloseMessage)) {
                                 sendButton.setEnabled(false);
                                 deleteButton.setText("Delete");
                             }
@@ -239,6 +262,7 @@ public class ChatPanel {
             LOGGER.info(STR."Started \{peerNetManager}");
             peerController = peerNetManager.getController();
             SwingUtilities.invokeLater(() -> {
+                refreshRooms();
                 connectedLabel.setText("Connected");
                 connectedLabel.setForeground(new Color(0, 153, 51));
                 disconnectReconnectButton.setEnabled(true);
@@ -247,15 +271,7 @@ public class ChatPanel {
         });
         detailedViewCheckBox.addActionListener(_ -> {
             if (chatRooms.getItemCount() > 0 && chatRooms.getSelectedItem() != null) {
-                msgListModel.clear();
-                msgListModel.addAll(((ChatRoom) chatRooms.getSelectedItem()).getReceivedMsgs().stream().map(m -> {
-                    if (m instanceof CloseMessage)
-                        return new CloseChatBubble(m.sender(), detailedViewCheckBox.isSelected() ? m.toDetailedString() : m.toString());
-                    else if (m.sender().equals(user))
-                        return new RightArrowBubble(detailedViewCheckBox.isSelected() ? m.toDetailedString() : m.toString());
-                    else
-                        return new LeftArrowBubble(m.sender(), detailedViewCheckBox.isSelected() ? m.toDetailedString() : m.toString());
-                }).toList());
+                showLatestMessages((ChatRoom) chatRooms.getSelectedItem(), user);
             }
         });
 
@@ -292,20 +308,119 @@ public class ChatPanel {
 
             assert chat != null;
             peerController.sendMessage(msg, chat);
+        }
+    }
+
+    /**
+     * Show the last page of messages of the chat
+     * <p>
+     * The page is read in background, like the older ones. It is dropped if another chat has been selected or
+     * the messages have been reloaded in the meantime, and the messages added while loading it are shown after it.
+     */
+    private void showLatestMessages(ChatRoom chat, String user) {
+        List<Message> added = new ArrayList<>();
+        addedWhileLoading = added;
+        // No older page is loaded until the latest one is shown
+        firstShownMsg = 0;
+        msgListModel.clear();
+        executorService.execute(() -> {
             try {
-                Thread.sleep(500);
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
+                int from = Math.max(0, chat.getHistorySize() - PAGE_SIZE);
+                var latest = chat.page(from, Integer.MAX_VALUE);
+                SwingUtilities.invokeLater(() -> {
+                    if (addedWhileLoading != added || chatRooms.getSelectedItem() != chat)
+                        return;
+                    addedWhileLoading = null;
+                    firstShownMsg = from;
+                    Set<MessageId> inPage = latest.stream().map(Message::id).collect(Collectors.toSet());
+                    msgListModel.addAll(Stream.concat(latest.stream(), added.stream().filter(m -> !inPage.contains(m.id())))
+                            .map(m -> createBubble(m, user))
+                            .toList());
+                    msgList.ensureIndexIsVisible(msgListModel.size() - 1);
+                });
+            } catch (UncheckedIOException e) {
+                LOGGER.error(STR."Can't load the messages of chat \{chat.getId()}", e);
+                SwingUtilities.invokeLater(() -> {
+                    if (addedWhileLoading == added)
+                        addedWhileLoading = null;
+                    JOptionPane.showMessageDialog(JOptionPane.getRootFrame(),
+                            STR."""
+                                Can't load the messages.
+                                \{e.getCause()}""",
+                            "Error",
+                            JOptionPane.ERROR_MESSAGE);
+                });
             }
-        }
+        });
+    }
+
+    /**
+     * Add the page of messages before the ones shown, keeping the current ones in view
+     * <p>
+     * The page is read in background, since older messages may have to be read from disk. It is dropped if
+     * another chat has been selected or the messages have been reloaded in the meantime.
+     */
+    private void showPreviousMessages(ChatRoom chat, String user) {
+        if (loadingPrevious)
+            return;
+        loadingPrevious = true;
+        int shown = firstShownMsg;
+        int from = Math.max(0, shown - PAGE_SIZE);
+        executorService.execute(() -> {
+            try {
+                var older = chat.page(from, shown - from);
+                SwingUtilities.invokeLater(() -> {
+                    loadingPrevious = false;
+                    if (chatRooms.getSelectedItem() != chat || firstShownMsg != shown)
+                        return;
+                    firstShownMsg = from;
+                    msgListModel.addAll(0, older.stream().map(m -> createBubble(m, user)).toList());
+                    msgList.ensureIndexIsVisible(older.size());
+                });
+            } catch (UncheckedIOException e) {
+                LOGGER.error(STR."Can't load the older messages of chat \{chat.getId()}", e);
+                SwingUtilities.invokeLater(() -> {
+                    loadingPrevious = false;
+                    JOptionPane.showMessageDialog(JOptionPane.getRootFrame(),
+                            STR."""
+                                Can't load the older messages.
+                                \{e.getCause()}""",
+                            "Error",
+                            JOptionPane.ERROR_MESSAGE);
+                });
+            }
+        });
+    }
+
+    private MessageBubble createBubble(Message m, String user) {
+        String text = detailedViewCheckBox.isSelected() ? m.toDetailedString() : m.toString();
+        if (m instanceof CloseMessage)
+            return new CloseChatBubble(m.sender(), text);
+        else if (m.sender().equals(user))
+            return new RightArrowBubble(text);
+        else
+            return new LeftArrowBubble(m.sender(), text);
     }
 
     private void deleteRoom(ChatRoom chat) {
         peerNetManager.deletedChat(chat);
-        chatRooms.removeItem(chat);
+        refreshRooms();
         LOGGER.trace(STR."Room \{chat} removed from gui");
     }
 
+    /**
+     * Align the combo box with the rooms of the peer, which are the only list of rooms: rooms no longer in the
+     * peer are removed and new ones are added at the end, so the selected room doesn't change unless it was deleted
+     */
+    private void refreshRooms() {
+        Set<ChatRoom> rooms = new HashSet<>(peerNetManager.getRooms().getRooms());
+        for (int i = chatRooms.getItemCount() - 1; i >= 0; i--) {
+            if (!rooms.remove(chatRooms.getItemAt(i)))
+                chatRooms.removeItemAt(i);
+        }
+        rooms.forEach(chatRooms::addItem);
+    }
+
     private void setConnected(boolean connected) {
         if (connected) {
             disconnectReconnectButton.setEnabled(false);
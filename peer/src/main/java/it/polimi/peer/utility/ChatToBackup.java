@@ -1,7 +1,8 @@
 package it.polimi.peer.utility;
 
 import it.polimi.messages.Message;
-import it.polimi.messages.StringMessage;
+import it.polimi.packets.p2p.Dissemination;
+import it.polimi.peer.ChatHistory;
 import it.polimi.peer.ChatRoom;
 
 import java.io.Serializable;
@@ -11,20 +12,29 @@ import java.util.Set;
 import java.util.UUID;
 
 /**
- * Serialization of a chatroom in order for it to be saved locally
+ * Serialization of a chatroom in order for it to be saved locally.
+ * Only the messages which are not already in the history segments on disk are saved.
  *
  * @param id
  * @param name
  * @param users
  * @param waiting
- * @param received
+ * @param received         messages received after the last archived segment
  * @param vectorClocks
+ * @param archivedSegments number of history segments on disk (0 for backups written before segments existed)
+ * @param dissemination    see {@link ChatRoom#getDissemination()} (null for backups written before it existed)
  */
 public record ChatToBackup(UUID id, String name, Set<String> users, Set<Message> waiting,
                            Collection<Message> received,
-                           Map<String, Integer> vectorClocks) implements Serializable {
+                           Map<String, Integer> vectorClocks,
+                           int archivedSegments,
+                           Dissemination dissemination) implements Serializable {
 
     public ChatToBackup(ChatRoom chat) {
-        this(chat.getId(), chat.getName(), chat.getUsers(), chat.getWaitingMessages(), chat.getReceivedMsgs(), chat.getVectorClocks());
+        this(chat, chat.getHistory().tail());
+    }
+
+    private ChatToBackup(ChatRoom chat, ChatHistory.Tail tail) {
+        this(chat.getId(), chat.getName(), chat.getUsers(), chat.getWaitingMessages(), tail.messages(), chat.getVectorClocks(), tail.archivedSegments(), chat.getDissemination());
     }
 }
@@ -0,0 +1,95 @@
+package it.polimi.peer.utility;
+
+import it.polimi.messages.Message;
+import it.polimi.messages.StringMessage;
+import it.polimi.packets.ByePacket;
+import it.polimi.packets.p2p.*;
+
+import java.util.*;
+import java.util.function.ToIntFunction;
+
+/**
+ * Approximated size of the packets once serialized, used to split big payloads in packets
+ * which fit in a datagram.
+ */
+public class PacketSize {
+    /**
+     * Max size of the payload of a datagram, with some margin from the buffer size of the socket
+     */
+    public static final int MAX_PACKET_SIZE = 40000;
+    private static final int UUID_SIZE = 20;
+    //Approximated overhead of java serialization
+    private static final int OVERHEAD = 50;
+
+    private PacketSize() {
+    }
+
+    // Gets size of the whole packet queue, only check string items
+    public static int of(Collection<? extends P2PPacket> packets) {
+        int size = 0;
+        for (P2PPacket p : packets) {
+            size += of(p);
+        }
+        return size;
+    }
+
+    // Gets size of the packet, only check string items
+    public static int of(P2PPacket p) {
+        int size = OVERHEAD;
+        switch (p) {
+            case ByePacket bp -> size += bp.id().length();
+            case CreateRoomPacket crp ->
+                    size += crp.name().length() + crp.ids().stream().reduce(0, (s, t) -> s + t.length(), Integer::sum) + UUID_SIZE;
+            case DelayedMessagePacket dmp -> size += of(dmp.msg()) + UUID_SIZE;
+            case CloseRoomPacket clrp -> size += of(clrp.closeMessage()) + UUID_SIZE;
+            case HelloPacket hp -> size += hp.id().length();
+            case MessagePacket mp -> size += of(mp.msg()) + UUID_SIZE;
+            case MessageBatchPacket mbp -> size += mbp.msgs().stream().mapToInt(PacketSize::of).sum() + UUID_SIZE;
+            case SyncRequestPacket srp ->
+                    size += srp.id().length() + srp.vectorClocks().values().stream().mapToInt(vc -> getVCSize(vc) + UUID_SIZE).sum();
+            case NackPacket np -> size += np.id().length() + getVCSize(np.have()) + getVCSize(np.need()) + UUID_SIZE;
+        }
+        return size;
+    }
+
+    public static int of(Message m) {
+        int size = getVCSize(m.vectorClocks()) + m.sender().length();
+        if (m instanceof StringMessage sm)
+            size += sm.msg().length();
+        return size;
+    }
+
+    private static int getVCSize(Map<String, Integer> vc) {
+        return vc.keySet().stream()
+                .mapToInt(s -> s.length() + 8)
+                .sum();
+    }
+
+    /**
+     * Split the items in consecutive groups, each one with a total size lower than the given one
+     * (unless a single item is bigger)
+     *
+     * @param items   items to split
+     * @param size    size of each item
+     * @param maxSize max size of a group
+     * @return the groups, in order
+     */
+    public static <T> List<List<T>> split(Collection<? extends T> items, ToIntFunction<? super T> size, int maxSize) {
+        List<List<T>> groups = new ArrayList<>();
+        List<T> current = new ArrayList<>();
+        int currentSize = 0;
+        for (T item : items) {
+            int s = size.applyAsInt(item);
+            if (!current.isEmpty() && currentSize + s > maxSize) {
+                groups.add(current);
+                current = new ArrayList<>();
+                currentSize = 0;
+            }
+            current.add(item);
+            currentSize += s;
+        }
+        if (!current.isEmpty())
+            groups.add(current);
+        return groups;
+    }
+}
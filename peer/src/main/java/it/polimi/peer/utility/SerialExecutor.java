@@ -0,0 +1,110 @@
+package it.polimi.peer.utility;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Executor running its tasks one at a time, in submission order, on an underlying executor.
+ * <p>
+ * At most one task of the queue is submitted to the underlying executor at any time, so different
+ * serial executors sharing the same underlying executor run in parallel with each other.
+ * A task throwing an exception is logged and doesn't stop the following ones.
+ * <p>
+ * An optional callback is called each time the executor becomes idle, i.e. it has run all its tasks.
+ */
+public class SerialExecutor implements Executor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SerialExecutor.class);
+
+    private final Executor executor;
+    private final Runnable onIdle;
+    private final Queue<Runnable> tasks;
+    private final Lock lock;
+    private boolean running;
+
+    public SerialExecutor(Executor executor) {
+        this(executor, () -> {
+        });
+    }
+
+    /**
+     * @param executor executor running the tasks
+     * @param onIdle   called, without holding any lock, each time all the tasks have been run
+     */
+    public SerialExecutor(Executor executor, Runnable onIdle) {
+        this.executor = executor;
+        this.onIdle = onIdle;
+        this.tasks = new ArrayDeque<>();
+        this.lock = new ReentrantLock();
+    }
+
+    /**
+     * @return true if there are no tasks running or waiting to run
+     */
+    public boolean isIdle() {
+        lock.lock();
+        try {
+            return !running && tasks.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        lock.lock();
+        try {
+            tasks.add(task);
+            if (running)
+                return;
+            running = true;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            lock.lock();
+            try {
+                tasks.clear();
+                running = false;
+            } finally {
+                lock.unlock();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Run the queued tasks until the queue is empty
+     */
+    private void drain() {
+        while (true) {
+            Runnable task;
+            lock.lock();
+            try {
+                task = tasks.poll();
+                if (task == null)
+                    running = false;
+            } finally {
+                lock.unlock();
+            }
+            if (task == null) {
+                onIdle.run();
+                return;
+            }
+
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOGGER.error("Task failed", e);
+            }
+        }
+    }
+}
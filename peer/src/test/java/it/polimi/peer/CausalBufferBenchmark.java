@@ -0,0 +1,171 @@
+package it.polimi.peer;
+
+import it.polimi.messages.Message;
+import it.polimi.messages.StringMessage;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Benchmark of the delivery of a backlog of reordered messages, comparing the rescan of all the waiting messages
+ * after each delivery, as {@link ChatRoom} used to do, with the indexed {@link CausalBuffer}.
+ * <p>
+ * Not run by the default build, since the results depend on the machine: run it with
+ * {@code mvn test -P Benchmarks}.
+ */
+@Tag("benchmark")
+class CausalBufferBenchmark {
+    private static final int MEMBERS = 5;
+    private static final int MESSAGES = 10_000;
+    private static final int RUNS = 3;
+
+    /**
+     * Delivery of messages in causal order, with the waiting messages kept by the implementation under test
+     */
+    private abstract static class Delivery {
+        final List<String> users;
+        final Map<String, Integer> vectorClocks = new HashMap<>();
+        final List<Message> delivered = new ArrayList<>();
+
+        Delivery(List<String> users) {
+            this.users = users;
+            users.forEach(u -> vectorClocks.put(u, 0));
+        }
+
+        void add(Message m) {
+            if (checkVC(m.vectorClocks()) == 1) {
+                deliver(m);
+                checkWaiting();
+            } else if (checkVC(m.vectorClocks()) == -1) {
+                hold(m);
+            }
+        }
+
+        void deliver(Message m) {
+            vectorClocks.put(m.sender(), m.vectorClocks().get(m.sender()));
+            delivered.add(m);
+        }
+
+        /**
+         * Same check of {@link ChatRoom}: 1 if the message can be delivered, -1 if it must wait,
+         * 0 if it is a duplicate
+         */
+        int checkVC(Map<String, Integer> vc) {
+            boolean senderFound = false;
+            for (String u : users) {
+                int newClock = vc.get(u);
+                int localClock = vectorClocks.get(u);
+                if (newClock == localClock + 1 && !senderFound)
+                    senderFound = true;
+                else if (newClock > localClock)
+                    return -1;
+            }
+            return senderFound ? 1 : 0;
+        }
+
+        abstract void hold(Message m);
+
+        abstract void checkWaiting();
+    }
+
+    /**
+     * The waiting messages are all checked again after each delivery, until none can be delivered
+     */
+    private static final class Rescan extends Delivery {
+        private final Set<Message> waiting = new LinkedHashSet<>();
+
+        Rescan(List<String> users) {
+            super(users);
+        }
+
+        @Override
+        void hold(Message m) {
+            waiting.add(m);
+        }
+
+        @Override
+        void checkWaiting() {
+            boolean added;
+            do {
+                added = false;
+                var iter = waiting.iterator();
+                while (iter.hasNext()) {
+                    Message m = iter.next();
+                    if (checkVC(m.vectorClocks()) == 1) {
+                        deliver(m);
+                        added = true;
+                        iter.remove();
+                    }
+                }
+            } while (added);
+        }
+    }
+
+    /**
+     * Only the waiting messages unblocked by a delivery are checked
+     */
+    private static final class Indexed extends Delivery {
+        private final CausalBuffer waiting = new CausalBuffer(MESSAGES);
+
+        Indexed(List<String> users) {
+            super(users);
+        }
+
+        @Override
+        void hold(Message m) {
+            waiting.add(m, vectorClocks);
+        }
+
+        @Override
+        void deliver(Message m) {
+            super.deliver(m);
+            waiting.advance(m.sender(), m.vectorClocks().get(m.sender()));
+        }
+
+        @Override
+        void checkWaiting() {
+            Message m;
+            while ((m = waiting.pollReady()) != null) {
+                if (checkVC(m.vectorClocks()) == 1)
+                    deliver(m);
+            }
+        }
+    }
+
+    @Test
+    void reorderedBacklog() {
+        List<String> users = IntStream.range(0, MEMBERS).mapToObj(i -> STR."peer\{i}").toList();
+        // Messages from all the members, each one causally dependent on the previous one
+        List<Message> msgs = new ArrayList<>(MESSAGES);
+        Map<String, Integer> clocks = new HashMap<>();
+        users.forEach(u -> clocks.put(u, 0));
+        for (int i = 0; i < MESSAGES; i++) {
+            String sender = users.get(i % MEMBERS);
+            clocks.merge(sender, 1, Integer::sum);
+            msgs.add(new StringMessage(String.valueOf(i), Map.copyOf(clocks), sender));
+        }
+        // Everything but the first message arrives in reverse order
+        List<Message> arrivals = new ArrayList<>(msgs.subList(1, MESSAGES).reversed());
+        arrivals.add(msgs.getFirst());
+
+        System.out.println(STR."implementation | best of \{RUNS} ms | \{MESSAGES} messages, \{MEMBERS} members");
+        for (var impl : List.<Map.Entry<String, Function<List<String>, Delivery>>>of(
+                Map.entry("rescan", Rescan::new),
+                Map.entry("indexed", Indexed::new))) {
+            long best = Long.MAX_VALUE;
+            for (int r = 0; r < RUNS; r++) {
+                Delivery delivery = impl.getValue().apply(users);
+                long start = System.nanoTime();
+                arrivals.forEach(delivery::add);
+                best = Math.min(best, System.nanoTime() - start);
+                assertEquals(msgs, delivery.delivered);
+            }
+            System.out.println(STR."\{String.format("%-14s | %14d", impl.getKey(), best / 1_000_000)}");
+        }
+    }
+}
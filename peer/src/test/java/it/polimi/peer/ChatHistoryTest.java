@@ -0,0 +1,108 @@
+package it.polimi.peer;
+
+import it.polimi.messages.Message;
+import it.polimi.messages.StringMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChatHistoryTest {
+
+    private static List<Message> messages(int n) {
+        List<Message> msgs = new ArrayList<>(n);
+        for (int i = 1; i <= n; i++)
+            msgs.add(new StringMessage(String.valueOf(i), Map.of("test1", i), "test1"));
+        return msgs;
+    }
+
+    @Test
+    void segmentsAreArchivedOnDisk(@TempDir Path dir) throws IOException {
+        var msgs = messages(25);
+        ChatHistory history = new ChatHistory(dir, 10, 0);
+        msgs.forEach(history::append);
+
+        assertEquals(25, history.size());
+        history.flush();
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(2, files.count());
+        }
+
+        var tail = history.tail();
+        assertEquals(2, tail.archivedSegments());
+        assertEquals(msgs.subList(20, 25), tail.messages());
+
+        assertEquals(msgs, new ArrayList<>(history));
+        for (int i = 0; i < msgs.size(); i++)
+            assertEquals(msgs.get(i), history.get(i));
+        assertThrows(IndexOutOfBoundsException.class, () -> history.get(25));
+    }
+
+    @Test
+    void sealedSegmentsAreReadableAndSavedUntilWritten(@TempDir Path dir) {
+        var msgs = messages(25);
+        ChatHistory history = new ChatHistory(dir, 10, 0);
+        history.appendAll(msgs);
+
+        // Whether or not the writer is done, no message is lost
+        var tail = history.tail();
+        assertEquals(msgs.subList(tail.archivedSegments() * 10, 25), tail.messages());
+        assertEquals(msgs, history.page(0, 25));
+
+        history.flush();
+        assertEquals(2, history.tail().archivedSegments());
+        assertEquals(msgs, history.page(0, 25));
+    }
+
+    @Test
+    void pagesSpanSegmentsAndTail(@TempDir Path dir) {
+        var msgs = messages(25);
+        ChatHistory history = new ChatHistory(dir, 10, 0);
+        history.appendAll(msgs);
+
+        assertEquals(msgs.subList(2, 7), history.page(2, 5));
+        assertEquals(msgs.subList(8, 23), history.page(8, 15));
+        assertEquals(msgs.subList(20, 25), history.page(20, 100));
+        assertEquals(List.of(), history.page(25, 10));
+        assertThrows(IndexOutOfBoundsException.class, () -> history.page(26, 10));
+        assertThrows(UnsupportedOperationException.class, () -> history.page(0, 5).clear());
+    }
+
+    @Test
+    void historyIsRestoredFromTail(@TempDir Path dir) {
+        var msgs = messages(35);
+        ChatHistory history = new ChatHistory(dir, 10, 0);
+        history.appendAll(msgs.subList(0, 32));
+        history.flush();
+        var tail = history.tail();
+
+        ChatHistory restored = new ChatHistory(dir, 10, tail.archivedSegments());
+        restored.appendAll(tail.messages());
+        restored.appendAll(msgs.subList(32, 35));
+
+        assertEquals(msgs, new ArrayList<>(restored));
+
+        restored.delete();
+        assertFalse(Files.exists(dir));
+    }
+
+    @Test
+    void inMemoryHistoryIsFullySaved() {
+        var msgs = messages(2500);
+        ChatHistory history = new ChatHistory();
+        history.appendAll(msgs);
+
+        var tail = history.tail();
+        assertEquals(0, tail.archivedSegments());
+        assertEquals(msgs, tail.messages());
+        assertEquals(msgs, new ArrayList<>(history));
+    }
+}
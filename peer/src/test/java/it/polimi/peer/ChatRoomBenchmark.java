@@ -0,0 +1,96 @@
+package it.polimi.peer;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Benchmark of concurrent calls to {@link ChatRoom#createLocalMessage(String, String)} with a slow listener,
+ * comparing the listener fired while holding the lock of the room, as {@link ChatRoom} used to do, with the
+ * listener fired after the lock is released.
+ * <p>
+ * Not run by the default build, since the results depend on the machine: run it with
+ * {@code mvn test -P Benchmarks}.
+ */
+@Tag("benchmark")
+class ChatRoomBenchmark {
+    private static final int THREADS = 4;
+    private static final int CALLS = 100;
+    private static final long LISTENER_MS = 1;
+
+    private record Result(double medianUs, double p99Us, double callsPerSecond) {
+    }
+
+    @Test
+    void slowListenerOutsideTheLock() throws Exception {
+        // The old behaviour is modeled by holding a lock of the room around the call and its listener
+        var inside = run(true);
+        var outside = run(false);
+
+        System.out.println(STR."listener | median us | p99 us | calls/s | \{THREADS} threads, listener of \{LISTENER_MS} ms");
+        System.out.println(STR."inside   | \{String.format("%9.1f | %6.1f | %7.0f", inside.medianUs(), inside.p99Us(), inside.callsPerSecond())}");
+        System.out.println(STR."outside  | \{String.format("%9.1f | %6.1f | %7.0f", outside.medianUs(), outside.p99Us(), outside.callsPerSecond())}");
+
+        // Callers no longer wait for the listener, only the one dispatching the events does
+        assertTrue(outside.medianUs() < inside.medianUs());
+        assertTrue(outside.medianUs() < LISTENER_MS * 1000);
+    }
+
+    private static Result run(boolean listenerInsideLock) throws Exception {
+        List<String> users = IntStream.range(0, THREADS).mapToObj(i -> STR."peer\{i}").toList();
+        ChatRoom chat = new ChatRoom("room", new HashSet<>(users), _ -> {
+            try {
+                Thread.sleep(LISTENER_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Lock pushLock = new ReentrantLock();
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch start = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> callers = new ArrayList<>();
+            for (String user : users) {
+                callers.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < CALLS; i++) {
+                        long t = System.nanoTime();
+                        if (listenerInsideLock) {
+                            pushLock.lock();
+                            try {
+                                chat.createLocalMessage(String.valueOf(i), user);
+                            } finally {
+                                pushLock.unlock();
+                            }
+                        } else {
+                            chat.createLocalMessage(String.valueOf(i), user);
+                        }
+                        latencies.add(System.nanoTime() - t);
+                    }
+                    return null;
+                }));
+            }
+            long t = System.nanoTime();
+            start.countDown();
+            for (Future<?> f : callers)
+                f.get();
+            double seconds = (System.nanoTime() - t) / 1e9;
+
+            assertEquals(THREADS * CALLS, chat.getHistorySize());
+            List<Long> sorted = latencies.stream().sorted().toList();
+            return new Result(sorted.get(sorted.size() / 2) / 1e3, sorted.get((int) (sorted.size() * 0.99)) / 1e3,
+                    THREADS * CALLS / seconds);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
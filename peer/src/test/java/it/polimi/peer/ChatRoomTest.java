@@ -0,0 +1,325 @@
+package it.polimi.peer;
+
+import it.polimi.messages.CloseMessage;
+import it.polimi.messages.Message;
+import it.polimi.messages.StringMessage;
+import it.polimi.peer.events.MessagesAdded;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChatRoomTest {
+    private static final String ID1 = "test1";
+    private static final String ID2 = "test2";
+    private static final String ID3 = "test3";
+
+    private static StringMessage msg(String text, String sender, int c1, int c2, int c3) {
+        return new StringMessage(text, Map.of(ID1, c1, ID2, c2, ID3, c3), sender);
+    }
+
+    @Test
+    void outOfOrderMessagesAreDelivered() {
+        List<Message> delivered = new ArrayList<>();
+        ChatRoom chat = new ChatRoom("room", Set.of(ID1, ID2, ID3), e -> delivered.addAll(e.messages()));
+
+        var m1 = msg("1", ID1, 1, 0, 0);
+        var m2 = msg("2", ID2, 1, 1, 0);
+        var m3 = msg("3", ID3, 1, 1, 1);
+
+        chat.addMessage(m3);
+        chat.addMessage(m2);
+        assertEquals(2, chat.getWaitingMessages().size());
+        assertTrue(delivered.isEmpty());
+
+        chat.addMessage(m1);
+        assertEquals(List.of(m1, m2, m3), delivered);
+        assertTrue(chat.getWaitingMessages().isEmpty());
+        assertEquals(Map.of(ID1, 1, ID2, 1, ID3, 1), chat.getVectorClocks());
+    }
+
+    @Test
+    void duplicatedMessagesAreIgnored() {
+        List<Message> delivered = new ArrayList<>();
+        ChatRoom chat = new ChatRoom("room", Set.of(ID1, ID2, ID3), e -> delivered.addAll(e.messages()));
+
+        var m1 = msg("1", ID1, 1, 0, 0);
+        var m2 = msg("2", ID1, 2, 0, 0);
+
+        chat.addMessage(m2);
+        chat.addMessage(m2);
+        assertEquals(1, chat.getWaitingMessages().size());
+
+        chat.addMessage(m1);
+        chat.addMessage(m1);
+        assertEquals(List.of(m1, m2), delivered);
+        assertTrue(chat.getWaitingMessages().isEmpty());
+    }
+
+    @Test
+    void waitingCloseMessageClosesTheRoom() {
+        ChatRoom chat = new ChatRoom("room", Set.of(ID1, ID2, ID3), _ -> {
+        });
+
+        chat.close(new CloseMessage(Map.of(ID1, 1, ID2, 1, ID3, 0), ID2));
+        assertFalse(chat.isClosed());
+
+        chat.addMessage(msg("1", ID1, 1, 0, 0));
+        assertTrue(chat.isClosed());
+        assertTrue(chat.getWaitingMessages().isEmpty());
+        assertInstanceOf(CloseMessage.class, new ArrayList<>(chat.getReceivedMsgs()).getLast());
+    }
+
+    @Test
+    void reorderedBacklogIsDelivered() {
+        final int n = 10_000;
+        List<StringMessage> msgs = new ArrayList<>(n);
+        // Messages from all senders, each one causally dependent on the previous one
+        int[] clocks = new int[3];
+        String[] ids = {ID1, ID2, ID3};
+        for (int i = 0; i < n; i++) {
+            clocks[i % 3]++;
+            msgs.add(msg(String.valueOf(i), ids[i % 3], clocks[0], clocks[1], clocks[2]));
+        }
+
+        List<Message> delivered = new ArrayList<>(n);
+        ChatRoom chat = new ChatRoom("room", Set.of(ID1, ID2, ID3), e -> delivered.addAll(e.messages()));
+        // Everything but the first message arrives in reverse order
+        for (int i = n - 1; i > 0; i--)
+            chat.addMessage(msgs.get(i));
+        assertEquals(n - 1, chat.getWaitingMessages().size());
+
+        chat.addMessage(msgs.getFirst());
+        assertEquals(msgs, delivered);
+        assertTrue(chat.getWaitingMessages().isEmpty());
+    }
+
+    @Test
+    void listenersAreCalledOutsideTheLock() throws ExecutionException, InterruptedException, TimeoutException {
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        List<Message> delivered = new CopyOnWriteArrayList<>();
+        AtomicReference<ChatRoom> chatRef = new AtomicReference<>();
+        var m2 = msg("2", ID2, 0, 1, 0);
+
+        ChatRoom chat = new ChatRoom("room", Set.of(ID1, ID2, ID3), e -> {
+            Message m = e.messages().getFirst();
+            delivered.add(m);
+            // Another thread delivering a message while this listener is running must not block
+            if (m.sender().equals(ID1)) {
+                try {
+                    executor.submit(() -> chatRef.get().addMessage(m2)).get(500, TimeUnit.MILLISECONDS);
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        });
+        chatRef.set(chat);
+
+        var state = chat.getState();
+        var m1 = chat.createLocalMessage("1", ID1);
+        executor.shutdown();
+
+        assertEquals(List.of(m1, m2), delivered);
+        assertEquals(state.version() + 2, chat.getState().version());
+        assertEquals(Map.of(ID1, 1, ID2, 1, ID3, 0), chat.getVectorClocks());
+        // Snapshots are immutable
+        assertEquals(Map.of(ID1, 0, ID2, 0, ID3, 0), state.vectorClocks());
+        assertThrows(UnsupportedOperationException.class, () -> chat.getVectorClocks().put(ID1, 5));
+    }
+
+    @Test
+    void stableMessagesAreCompacted() {
+        ChatRoom chat = new ChatRoom("room", Set.of(ID1, ID2, ID3), _ -> {
+        });
+
+        // Every user sends a message after receiving all the previous ones
+        int rounds = ChatRoom.COMPACTION_INTERVAL;
+        List<Message> sent = new ArrayList<>();
+        for (int i = 1; i <= rounds; i++) {
+            sent.add(chat.createLocalMessage("a" + i, ID1));
+            var m2 = msg("b" + i, ID2, i, i, i - 1);
+            var m3 = msg("c" + i, ID3, i, i, i);
+            chat.addMessage(m2);
+            chat.addMessage(m3);
+            sent.add(m2);
+            sent.add(m3);
+        }
+        chat.compactHistory();
+
+        // Only the messages seen by all the members are stable
+        assertEquals(Map.of(ID1, rounds, ID2, rounds - 1, ID3, rounds - 1), chat.getStableClocks());
+        List<Message> history = new ArrayList<>(chat.getReceivedMsgs());
+        assertEquals(sent, history);
+        for (int i = 0; i < history.size(); i++) {
+            Message m = history.get(i);
+            boolean stable = i < history.size() - 2;
+            assertEquals(stable ? 1 : 3, m.vectorClocks().size(), m.toString());
+            assertEquals(sent.get(i).id(), m.id());
+        }
+    }
+
+    @Test
+    void backlogIsDeliveredInBulk() {
+        final int n = 5_000;
+        List<StringMessage> msgs = new ArrayList<>(n);
+        int[] clocks = new int[3];
+        String[] ids = {ID1, ID2, ID3};
+        for (int i = 0; i < n; i++) {
+            clocks[i % 3]++;
+            msgs.add(msg(String.valueOf(i), ids[i % 3], clocks[0], clocks[1], clocks[2]));
+        }
+
+        List<MessagesAdded> events = new ArrayList<>();
+        ChatRoom chat = new ChatRoom("room", Set.of(ID1, ID2, ID3), events::add);
+        // The first message arrives alone, the other ones in a shuffled backlog
+        chat.addMessage(msgs.getFirst());
+        List<StringMessage> backlog = new ArrayList<>(msgs.subList(1, n));
+        Collections.shuffle(backlog, new Random(42));
+        chat.addMessages(backlog);
+
+        assertEquals(2, events.size());
+        assertEquals(msgs.subList(1, n), events.getLast().messages());
+        assertEquals(msgs, new ArrayList<>(chat.getReceivedMsgs()));
+        assertTrue(chat.getWaitingMessages().isEmpty());
+
+        // Duplicates don't generate any event
+        chat.addMessages(msgs.subList(0, 10));
+        assertEquals(2, events.size());
+    }
+
+    @Test
+    void missingMessagesAreFound() {
+        ChatRoom chat = new ChatRoom("room", Set.of(ID1, ID2, ID3), _ -> {
+        });
+        var m1 = chat.createLocalMessage("1", ID1);
+        var m2 = msg("2", ID2, 1, 1, 0);
+        var m3 = msg("3", ID3, 1, 1, 1);
+        var m4 = msg("4", ID2, 1, 2, 1);
+        chat.addMessages(List.of(m2, m3, m4));
+
+        assertEquals(List.of(m1, m2, m3, m4), chat.getMissingMessages(Map.of()));
+        assertEquals(List.of(m3, m4), chat.getMissingMessages(Map.of(ID1, 1, ID2, 1, ID3, 0)));
+        assertEquals(List.of(m4), chat.getMissingMessages(Map.of(ID1, 1, ID2, 1, ID3, 1)));
+        assertTrue(chat.getMissingMessages(chat.getVectorClocks()).isEmpty());
+    }
+
+    @Test
+    void missingPredecessorsAreReported() {
+        ChatRoom chat = new ChatRoom("room", Set.of(ID1, ID2, ID3), _ -> {
+        });
+        chat.addMessage(msg("3", ID3, 2, 1, 1));
+        assertTrue(chat.getMissingPredecessors(Duration.ofMinutes(1)).isEmpty());
+        assertEquals(Map.of(ID1, 2, ID2, 1), chat.getMissingPredecessors(Duration.ZERO));
+        assertEquals(1, chat.getWaitingStats().waiting());
+
+        chat.addMessages(List.of(msg("1", ID1, 1, 0, 0), msg("2", ID1, 2, 0, 0)));
+        assertEquals(Map.of(ID2, 1), chat.getMissingPredecessors(Duration.ZERO));
+        assertEquals(1, chat.getWaitingStats().waiting());
+
+        chat.addMessage(msg("4", ID2, 2, 1, 0));
+        assertTrue(chat.getMissingPredecessors(Duration.ZERO).isEmpty());
+        var stats = chat.getWaitingStats();
+        assertEquals(0, stats.waiting());
+        assertEquals(1, stats.delivered());
+        assertEquals(Map.of(ID1, 2, ID2, 1, ID3, 1), chat.getVectorClocks());
+    }
+
+    @Test
+    void waitingListIsBounded() {
+        ChatRoom chat = new ChatRoom("room", Set.of(ID1, ID2, ID3), _ -> {
+        });
+        // The first message of ID2 is lost
+        for (int i = 2; i <= ChatRoom.MAX_WAITING_MESSAGES + 10; i++)
+            chat.addMessage(msg(String.valueOf(i), ID2, 0, i, 0));
+        assertEquals(ChatRoom.MAX_WAITING_MESSAGES, chat.getWaitingStats().waiting());
+        // The dropped messages are requested too
+        assertEquals(Map.of(ID2, ChatRoom.MAX_WAITING_MESSAGES + 10), chat.getMissingPredecessors(Duration.ZERO));
+
+        chat.addMessage(msg("1", ID2, 0, 1, 0));
+        var stats = chat.getWaitingStats();
+        assertEquals(0, stats.waiting());
+        assertEquals(ChatRoom.MAX_WAITING_MESSAGES, stats.delivered());
+        assertTrue(stats.maxWait().compareTo(stats.averageWait()) >= 0);
+        assertEquals(Map.of(ID1, 0, ID2, ChatRoom.MAX_WAITING_MESSAGES + 1, ID3, 0), chat.getVectorClocks());
+    }
+
+    @Test
+    void droppedMessagesAreRequestedUntilDelivered() {
+        ChatRoom chat = new ChatRoom("room", Set.of(ID1, ID2, ID3), _ -> {
+        });
+        for (int i = 2; i <= ChatRoom.MAX_WAITING_MESSAGES + 10; i++)
+            chat.addMessage(msg(String.valueOf(i), ID2, 0, i, 0));
+        // A message depending on a message of ID1 is dropped too
+        chat.addMessage(msg("x", ID3, 3, 0, 1));
+
+        // Once the gap is filled, nothing is waiting, but the dropped range is still missing
+        chat.addMessage(msg("1", ID2, 0, 1, 0));
+        assertEquals(0, chat.getWaitingStats().waiting());
+        assertEquals(Map.of(ID1, 3, ID2, ChatRoom.MAX_WAITING_MESSAGES + 10, ID3, 1),
+                chat.getMissingPredecessors(Duration.ofMinutes(1)));
+
+        List<StringMessage> resent = new ArrayList<>();
+        for (int i = ChatRoom.MAX_WAITING_MESSAGES + 2; i <= ChatRoom.MAX_WAITING_MESSAGES + 10; i++)
+            resent.add(msg(String.valueOf(i), ID2, 0, i, 0));
+        chat.addMessages(resent);
+        assertEquals(Map.of(ID1, 3, ID3, 1), chat.getMissingPredecessors(Duration.ofMinutes(1)));
+
+        chat.addMessages(List.of(msg("1", ID1, 1, 0, 0), msg("2", ID1, 2, 0, 0), msg("3", ID1, 3, 0, 0),
+                msg("x", ID3, 3, 0, 1)));
+        assertTrue(chat.getMissingPredecessors(Duration.ZERO).isEmpty());
+        assertEquals(Map.of(ID1, 3, ID2, ChatRoom.MAX_WAITING_MESSAGES + 10, ID3, 1), chat.getVectorClocks());
+    }
+
+    @Test
+    void historyIsStreamedOnDemand() throws InterruptedException {
+        ChatRoom chat = new ChatRoom("room", Set.of(ID1, ID2, ID3), _ -> {
+        });
+        List<Message> sent = new ArrayList<>();
+        for (int i = 1; i <= 5; i++)
+            sent.add(chat.createLocalMessage(String.valueOf(i), ID1));
+
+        BlockingQueue<Message> received = new LinkedBlockingQueue<>();
+        CountDownLatch completed = new CountDownLatch(1);
+        AtomicReference<Flow.Subscription> subscription = new AtomicReference<>();
+        chat.messages(2).subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                subscription.set(s);
+            }
+
+            @Override
+            public void onNext(Message item) {
+                received.add(item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+                completed.countDown();
+            }
+        });
+
+        // Replay from the given position, only what is requested
+        subscription.get().request(2);
+        assertEquals(sent.get(2), received.poll(1, TimeUnit.SECONDS));
+        assertEquals(sent.get(3), received.poll(1, TimeUnit.SECONDS));
+        assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+
+        // Then live messages
+        subscription.get().request(3);
+        assertEquals(sent.get(4), received.poll(1, TimeUnit.SECONDS));
+        var live = chat.createLocalMessage("6", ID2);
+        assertEquals(live, received.poll(1, TimeUnit.SECONDS));
+
+        var close = chat.createCloseMessage(ID3);
+        assertEquals(close, received.poll(1, TimeUnit.SECONDS));
+        assertTrue(completed.await(1, TimeUnit.SECONDS));
+    }
+}
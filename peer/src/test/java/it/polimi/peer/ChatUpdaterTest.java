@@ -0,0 +1,133 @@
+package it.polimi.peer;
+
+import it.polimi.messages.MessageId;
+import it.polimi.messages.StringMessage;
+import it.polimi.packets.p2p.*;
+import it.polimi.peer.events.EventBus;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChatUpdaterTest {
+    private static final String LOCAL = "gossipTestLocal";
+    private static final int MEMBERS = 10;
+    private static final int FANOUT = 3;
+    private static final int MSGS_PER_SENDER = 5;
+
+    /**
+     * Socket manager which records the packets instead of sending them, acking them immediately
+     */
+    private static final class RecordingSocketManager extends PeerSocketManager {
+        private final Queue<Map.Entry<P2PPacket, SocketAddress>> sent = new ConcurrentLinkedQueue<>();
+
+        RecordingSocketManager(ExecutorService executor) throws IOException {
+            super(LOCAL, executor, null, 1000, new DatagramSocket(0, InetAddress.getLoopbackAddress()));
+        }
+
+        @Override
+        public CompletableFuture<Void> sendAsync(P2PPacket packet, SocketAddress address) {
+            sent.add(Map.entry(packet, address));
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Serializable> T roundTrip(T packet) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+            oos.writeObject(packet);
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()))) {
+            return (T) ois.readObject();
+        }
+    }
+
+    @Test
+    void gossipMessagesAreRelayedOnceToAtMostFanoutMembers() throws Exception {
+        List<String> others = new ArrayList<>();
+        for (int i = 0; i < MEMBERS - 1; i++)
+            others.add(STR."member\{i}");
+        Set<String> users = new HashSet<>(others);
+        users.add(LOCAL);
+
+        Map<String, SocketAddress> ips = new ConcurrentHashMap<>();
+        Map<SocketAddress, String> byAddress = new HashMap<>();
+        for (int i = 0; i < others.size(); i++) {
+            var addr = InetSocketAddress.createUnresolved("localhost", 10_000 + i);
+            ips.put(others.get(i), addr);
+            byAddress.put(addr, others.get(i));
+        }
+
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        RecordingSocketManager socketManager = new RecordingSocketManager(executor);
+        EventBus events = new EventBus();
+        RoomRegistry chats = new RoomRegistry();
+        Set<String> connectedPeers = ConcurrentHashMap.newKeySet();
+        connectedPeers.addAll(others);
+        BackupManager backupManager = new BackupManager(LOCAL, events);
+        PeerController controller = new PeerController(LOCAL, chats, ips, connectedPeers,
+                socketManager, events, executor, backupManager, (_, _) -> fail("No peer is unreachable"));
+        ChatUpdater updater = new ChatUpdater(socketManager, chats, backupManager, events,
+                (_, _) -> fail("No peer connects"), _ -> fail("No peer disconnects"),
+                _ -> fail("No sync request"), _ -> fail("No NACK"), controller::relay, Set.of(), Set.of());
+        try {
+            SocketAddress sender = ips.get(others.getFirst());
+            UUID chatId = UUID.randomUUID();
+            updater.handlePacket(roundTrip(new CreateRoomPacket(chatId, "gossip", users, Dissemination.gossip(FANOUT))), sender);
+
+            // Messages of some members, each one received several times (as when relayed by different members)
+            // and out of order
+            List<String> senders = others.subList(0, 3);
+            List<MessagePacket> received = new ArrayList<>();
+            for (String s : senders) {
+                for (int c = 1; c <= MSGS_PER_SENDER; c++) {
+                    Map<String, Integer> clocks = new HashMap<>();
+                    users.forEach(u -> clocks.put(u, 0));
+                    clocks.put(s, c);
+                    var m = new MessagePacket(chatId, new StringMessage(STR."\{s} \{c}", clocks, s));
+                    for (int copy = 0; copy < 3; copy++)
+                        received.add(m);
+                }
+            }
+            Collections.shuffle(received, new Random(42));
+            for (MessagePacket m : received)
+                updater.handlePacket(roundTrip(m), sender);
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            int expected = senders.size() * MSGS_PER_SENDER * FANOUT;
+            while (socketManager.sent.size() < expected && System.nanoTime() < deadline)
+                Thread.sleep(10);
+            Thread.sleep(100);
+
+            ChatRoom chat = chats.get(chatId);
+            assertEquals(Dissemination.gossip(FANOUT), chat.getDissemination());
+            senders.forEach(s -> assertEquals(MSGS_PER_SENDER, chat.getVectorClocks().get(s)));
+
+            Map<MessageId, List<String>> relayed = new HashMap<>();
+            for (var e : socketManager.sent) {
+                var m = assertInstanceOf(MessagePacket.class, e.getKey());
+                relayed.computeIfAbsent(m.msg().id(), _ -> new ArrayList<>()).add(byAddress.get(e.getValue()));
+            }
+            assertEquals(senders.size() * MSGS_PER_SENDER, relayed.size());
+            relayed.forEach((msgId, targets) -> {
+                assertTrue(targets.size() <= FANOUT, STR."\{msgId} relayed to \{targets}");
+                assertEquals(targets.size(), Set.copyOf(targets).size(), STR."\{msgId} relayed twice to a member");
+                assertFalse(targets.contains(msgId.sender()), STR."\{msgId} relayed to its sender");
+                assertFalse(targets.contains(LOCAL));
+            });
+        } finally {
+            updater.close();
+            socketManager.close();
+            executor.shutdownNow();
+            events.close();
+        }
+    }
+}
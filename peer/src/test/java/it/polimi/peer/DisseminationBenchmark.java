@@ -0,0 +1,234 @@
+package it.polimi.peer;
+
+import it.polimi.messages.StringMessage;
+import it.polimi.packets.p2p.MessagePacket;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Benchmarks and simulations of the dissemination strategies of large rooms, printing a table for each strategy.
+ * <p>
+ * Not run by the default build, since the results depend on the machine: run them with
+ * {@code mvn test -P Benchmarks}.
+ */
+@Tag("benchmark")
+class DisseminationBenchmark {
+    private static final int GOSSIP_MEMBERS = 50;
+    private static final int GOSSIP_TRIALS = 200;
+    private static final double BROKEN_LINKS = 0.1;
+    private static final int MIN_LATENCY_MS = 5;
+    private static final int MAX_LATENCY_MS = 50;
+    private static final int TREE_MEMBERS = 500;
+    private static final double MIN_LINK_MS = 0.1;
+    private static final double MAX_LINK_MS = 0.5;
+
+    private static List<String> treeMembers() {
+        return IntStream.range(0, TREE_MEMBERS).mapToObj(i -> STR."peer\{i}").toList();
+    }
+
+    private record GossipResult(double coverage, double meanLatency, double p99Latency, double packets) {
+    }
+
+    /**
+     * Simulation of the dissemination of a message in a large room, comparing the direct sending with the
+     * gossip mode for different fanouts, and printing the coverage, latency and packets of each one.
+     * <p>
+     * Each link has a random latency and some links are broken (the packet is never acked), as when the
+     * direct connection between two members is bad. Members which don't receive the message are only
+     * reached later by the synchronization, so they are counted as missed.
+     */
+    @Test
+    void gossipWithBadLinks() {
+        var direct = simulateGossip(0, new Random(42));
+        System.out.println("fanout | coverage | mean ms | p99 ms | packets | sender packets");
+        System.out.println(STR."direct | \{String.format("%8.4f | %7.1f | %6.1f | %7.1f | %d", direct.coverage(), direct.meanLatency(), direct.p99Latency(), direct.packets(), GOSSIP_MEMBERS - 1)}");
+        Map<Integer, GossipResult> results = new TreeMap<>();
+        for (int k : new int[]{1, 2, 3, 4, 6, 8}) {
+            var r = simulateGossip(k, new Random(42));
+            results.put(k, r);
+            System.out.println(STR."\{String.format("%6d | %8.4f | %7.1f | %6.1f | %7.1f | %d", k, r.coverage(), r.meanLatency(), r.p99Latency(), r.packets(), k)}");
+        }
+
+        // With the direct sending, members with a broken link to the sender are never reached
+        assertTrue(direct.coverage() < 1 - BROKEN_LINKS / 2);
+        // Relays go around the broken links, with a sender fanout much lower than the size of the room
+        assertTrue(results.get(3).coverage() > direct.coverage());
+        assertTrue(results.get(6).coverage() > 0.99);
+        assertTrue(results.get(8).coverage() > results.get(2).coverage());
+        assertTrue(results.get(8).meanLatency() < results.get(2).meanLatency());
+    }
+
+    /**
+     * @param fanout gossip fanout, 0 for the direct sending
+     * @return statistics of the delivery of one message per trial
+     */
+    private static GossipResult simulateGossip(int fanout, Random random) {
+        long reached = 0;
+        long packets = 0;
+        List<Double> latencies = new ArrayList<>();
+        for (int t = 0; t < GOSSIP_TRIALS; t++) {
+            double[][] latency = new double[GOSSIP_MEMBERS][GOSSIP_MEMBERS];
+            for (int i = 0; i < GOSSIP_MEMBERS; i++) {
+                for (int j = 0; j < GOSSIP_MEMBERS; j++) {
+                    latency[i][j] = random.nextDouble() < BROKEN_LINKS
+                            ? Double.POSITIVE_INFINITY
+                            : MIN_LATENCY_MS + random.nextDouble() * (MAX_LATENCY_MS - MIN_LATENCY_MS);
+                }
+            }
+
+            // Member 0 is the sender, each member handles the message the first time it receives it
+            double[] received = new double[GOSSIP_MEMBERS];
+            Arrays.fill(received, Double.POSITIVE_INFINITY);
+            received[0] = 0;
+            PriorityQueue<double[]> arrivals = new PriorityQueue<>(Comparator.comparingDouble(a -> a[0]));
+            for (int target : gossipTargets(0, fanout, random)) {
+                packets++;
+                arrivals.add(new double[]{latency[0][target], target});
+            }
+            while (!arrivals.isEmpty()) {
+                double[] a = arrivals.poll();
+                int member = (int) a[1];
+                if (Double.isInfinite(a[0]) || received[member] <= a[0])
+                    continue;
+                received[member] = a[0];
+                if (fanout == 0)
+                    continue;
+                for (int target : gossipTargets(member, fanout, random)) {
+                    packets++;
+                    arrivals.add(new double[]{a[0] + latency[member][target], target});
+                }
+            }
+
+            for (int i = 1; i < GOSSIP_MEMBERS; i++) {
+                if (!Double.isInfinite(received[i])) {
+                    reached++;
+                    latencies.add(received[i]);
+                }
+            }
+        }
+
+        Collections.sort(latencies);
+        double mean = latencies.stream().mapToDouble(Double::doubleValue).average().orElse(0);
+        double p99 = latencies.isEmpty() ? 0 : latencies.get((int) (latencies.size() * 0.99));
+        return new GossipResult((double) reached / (GOSSIP_TRIALS * (GOSSIP_MEMBERS - 1)), mean, p99, (double) packets / GOSSIP_TRIALS);
+    }
+
+    /**
+     * @return the members a member sends the message to: all the others for the direct sending, otherwise
+     * {@code fanout} members chosen at random, except itself and the sender
+     */
+    private static List<Integer> gossipTargets(int member, int fanout, Random random) {
+        List<Integer> others = new ArrayList<>();
+        for (int i = 0; i < GOSSIP_MEMBERS; i++) {
+            if (i != member && i != 0)
+                others.add(i);
+        }
+        if (fanout == 0)
+            return others;
+        Collections.shuffle(others, random);
+        return others.subList(0, Math.min(fanout, others.size()));
+    }
+
+    /**
+     * Compare the CPU time spent by the sender of a message, and the time for each member to receive it, between
+     * the tree dissemination and the direct fan-out in a large room.
+     * <p>
+     * The cost of sending a packet is measured by serializing it and sending it to a local socket one packet at a
+     * time, as the socket manager does. The latency is then simulated on a LAN, where each member sends its
+     * packets one after the other.
+     */
+    @Test
+    void treeSenderCpuAgainstDirectFanout() throws IOException {
+        List<String> members = treeMembers();
+        Map<String, Integer> clocks = members.stream().collect(Collectors.toMap(m -> m, _ -> 1));
+        MessagePacket packet = new MessagePacket(UUID.randomUUID(), new StringMessage("Hello from a large room!", clocks, "peer0"));
+
+        try (DatagramSocket receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+             DatagramSocket sender = new DatagramSocket()) {
+            // Warm up
+            sendCpuNanos(sender, receiver, packet, 2000);
+
+            long directCpu = sendCpuNanos(sender, receiver, packet, TREE_MEMBERS - 1);
+            double packetCostMs = directCpu / 1e6 / (TREE_MEMBERS - 1);
+            Random random = new Random(42);
+            double[] direct = simulateDirect(packetCostMs, random);
+
+            System.out.println("strategy | sender CPU us | mean ms | max ms");
+            System.out.println(STR."direct   | \{String.format("%13d | %7.2f | %6.2f", directCpu / 1000, direct[0], direct[1])}");
+            for (int fanout : new int[]{2, 4, 8, 16}) {
+                long treeCpu = sendCpuNanos(sender, receiver, packet, fanout);
+                double[] tree = simulateTree(new RelayTree(members, fanout), packetCostMs, random);
+                System.out.println(STR."tree \{String.format("%3d | %13d | %7.2f | %6.2f", fanout, treeCpu / 1000, tree[0], tree[1])}");
+            }
+        }
+    }
+
+    /**
+     * @return the CPU time spent sending the packet the given number of times
+     */
+    private static long sendCpuNanos(DatagramSocket sender, DatagramSocket receiver, MessagePacket packet, int times) throws IOException {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        long start = bean.getCurrentThreadCpuTime();
+        for (int i = 0; i < times; i++) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+                oos.writeObject(packet);
+            }
+            sender.send(new DatagramPacket(baos.toByteArray(), baos.size(), receiver.getLocalSocketAddress()));
+        }
+        return bean.getCurrentThreadCpuTime() - start;
+    }
+
+    private static double link(Random random) {
+        return MIN_LINK_MS + random.nextDouble() * (MAX_LINK_MS - MIN_LINK_MS);
+    }
+
+    /**
+     * @return the mean and max latency of the members, if the sender sends to all of them
+     */
+    private static double[] simulateDirect(double packetCostMs, Random random) {
+        double sum = 0, max = 0;
+        for (int i = 1; i < TREE_MEMBERS; i++) {
+            double t = i * packetCostMs + link(random);
+            sum += t;
+            max = Math.max(max, t);
+        }
+        return new double[]{sum / (TREE_MEMBERS - 1), max};
+    }
+
+    /**
+     * @return the mean and max latency of the members, if each member forwards the message to its children
+     */
+    private static double[] simulateTree(RelayTree tree, double packetCostMs, Random random) {
+        Map<String, Double> received = new HashMap<>();
+        received.put("peer0", 0.0);
+        Deque<String> toVisit = new ArrayDeque<>(List.of("peer0"));
+        while (!toVisit.isEmpty()) {
+            String member = toVisit.remove();
+            int sent = 0;
+            for (String child : tree.children("peer0", member, _ -> true).stream().sorted().toList()) {
+                sent++;
+                received.put(child, received.get(member) + sent * packetCostMs + link(random));
+                toVisit.add(child);
+            }
+        }
+        received.remove("peer0");
+        assertEquals(TREE_MEMBERS - 1, received.size());
+        return new double[]{received.values().stream().mapToDouble(Double::doubleValue).average().orElseThrow(),
+                Collections.max(received.values())};
+    }
+}
@@ -0,0 +1,54 @@
+package it.polimi.peer;
+
+import it.polimi.messages.CloseMessage;
+import it.polimi.messages.StringMessage;
+import it.polimi.packets.p2p.CloseRoomPacket;
+import it.polimi.packets.p2p.MessagePacket;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HoldingAreaTest {
+
+    private static MessagePacket message(UUID chatId, int clock) {
+        return new MessagePacket(chatId, new StringMessage(String.valueOf(clock), Map.of("test1", clock), "test1"));
+    }
+
+    @Test
+    void onlyTheCreatedChatIsReleased() {
+        UUID chat1 = UUID.randomUUID();
+        UUID chat2 = UUID.randomUUID();
+        HoldingArea area = new HoldingArea();
+
+        var msgs1 = IntStream.rangeClosed(1, HoldingArea.MAX_ROOM_MESSAGES + 1).mapToObj(i -> message(chat1, i)).toList();
+        area.hold(msgs1);
+        area.hold(List.of(message(chat2, 1)));
+        var close = new CloseRoomPacket(chat1, new CloseMessage(Map.of("test1", 1), "test1"));
+        area.holdClose(close);
+
+        var held = area.release(chat1);
+        assertEquals(msgs1.subList(0, HoldingArea.MAX_ROOM_MESSAGES), held.messages());
+        assertEquals(List.of(close), held.closes());
+        assertEquals(1, area.getMessages().size());
+        assertTrue(area.getCloses().isEmpty());
+        assertTrue(area.release(chat1).messages().isEmpty());
+    }
+
+    @Test
+    void expiredChatsAreDropped() throws InterruptedException {
+        HoldingArea area = new HoldingArea(Duration.ofMillis(50));
+        area.hold(List.of(message(UUID.randomUUID(), 1)));
+        Thread.sleep(100);
+
+        UUID chatId = UUID.randomUUID();
+        area.hold(List.of(message(chatId, 1)));
+        assertEquals(1, area.getMessages().size());
+        assertEquals(1, area.release(chatId).messages().size());
+    }
+}
@@ -0,0 +1,37 @@
+package it.polimi.peer;
+
+import it.polimi.messages.StringMessage;
+import it.polimi.packets.ByePacket;
+import it.polimi.packets.p2p.MessagePacket;
+import it.polimi.packets.p2p.P2PPacket;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PeerControllerTest {
+
+    @Test
+    void equalQueuedPacketsAreEachResentOnce() {
+        UUID chatId = UUID.randomUUID();
+        List<P2PPacket> queued = List.of(
+                new ByePacket("a"),
+                new ByePacket("a"),
+                new MessagePacket(chatId, new StringMessage("hi", Map.of("a", 1), "a")),
+                new ByePacket("a"),
+                new MessagePacket(chatId, new StringMessage("hi", Map.of("a", 1), "a")));
+
+        var resend = PeerController.coalesce(queued);
+
+        // Each queued packet is replaced by exactly one packet to send
+        Set<P2PPacket> replaced = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (var r : resend) {
+            for (P2PPacket p : r.replaced())
+                assertTrue(replaced.add(p), STR."\{p} replaced twice");
+        }
+        assertEquals(queued.size(), replaced.size());
+        assertEquals(List.of(new ByePacket("a"), new ByePacket("a"), queued.get(2), new ByePacket("a"), queued.get(4)),
+                resend.stream().map(PeerController.Resend::toSend).toList());
+    }
+}
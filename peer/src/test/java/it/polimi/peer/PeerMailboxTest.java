@@ -0,0 +1,69 @@
+package it.polimi.peer;
+
+import it.polimi.packets.p2p.HelloPacket;
+import it.polimi.packets.p2p.P2PPacket;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PeerMailboxTest {
+
+    @Test
+    void packetsArePipelinedInOrderAndFailuresKeepTheRest() throws InterruptedException {
+        List<P2PPacket> sent = new CopyOnWriteArrayList<>();
+        List<CompletableFuture<Void>> acks = new CopyOnWriteArrayList<>();
+        BlockingQueue<List<P2PPacket>> failed = new LinkedBlockingQueue<>();
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        try {
+            PeerMailbox mailbox = new PeerMailbox(
+                    p -> {
+                        var ack = new CompletableFuture<Void>();
+                        acks.add(ack);
+                        sent.add(p);
+                        return ack;
+                    },
+                    (packets, _) -> failed.add(packets),
+                    executor);
+
+            var packets = IntStream.range(0, PeerMailbox.WINDOW + 2).mapToObj(i -> (P2PPacket) new HelloPacket(String.valueOf(i))).toList();
+            List<CompletableFuture<Boolean>> status = new ArrayList<>();
+            packets.forEach(p -> status.add(mailbox.offer(p)));
+
+            // A full window is sent without waiting for the acks, but no more
+            for (int i = 0; i < 50 && sent.size() < PeerMailbox.WINDOW; i++)
+                Thread.sleep(10);
+            Thread.sleep(50);
+            assertEquals(packets.subList(0, PeerMailbox.WINDOW), sent);
+
+            acks.forEach(a -> a.complete(null));
+            for (int i = 0; i < 50 && sent.size() < packets.size(); i++)
+                Thread.sleep(10);
+            assertEquals(packets, sent);
+            assertTrue(status.subList(0, PeerMailbox.WINDOW).stream().allMatch(CompletableFuture::join));
+
+            // The first packet not acked is handed back with the following ones
+            acks.get(PeerMailbox.WINDOW).completeExceptionally(new IOException("timeout"));
+            acks.get(PeerMailbox.WINDOW + 1).complete(null);
+            var next = new HelloPacket("next");
+            assertEquals(List.of(packets.get(PeerMailbox.WINDOW)), failed.poll(1, TimeUnit.SECONDS));
+            assertFalse(status.get(PeerMailbox.WINDOW).join());
+            assertTrue(status.get(PeerMailbox.WINDOW + 1).join());
+
+            // The mailbox goes on with the packets offered later
+            var nextStatus = mailbox.offer(next);
+            for (int i = 0; i < 50 && sent.size() < packets.size() + 1; i++)
+                Thread.sleep(10);
+            acks.getLast().complete(null);
+            assertTrue(nextStatus.join());
+            assertEquals(next, sent.getLast());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
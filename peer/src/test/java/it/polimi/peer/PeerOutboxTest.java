@@ -0,0 +1,86 @@
+package it.polimi.peer;
+
+import it.polimi.messages.StringMessage;
+import it.polimi.packets.p2p.MessagePacket;
+import it.polimi.packets.p2p.P2PPacket;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PeerOutboxTest {
+
+    @Test
+    void pendingPacketsSurviveARestart(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("outbox").resolve("test2.log");
+        UUID chatId = UUID.randomUUID();
+        // Enough packets to grow the mapped file
+        List<P2PPacket> packets = IntStream.rangeClosed(1, 500)
+                .mapToObj(i -> (P2PPacket) new MessagePacket(chatId, new StringMessage("x".repeat(200), Map.of("test1", i), "test1")))
+                .toList();
+
+        try (PeerOutbox outbox = new PeerOutbox(file)) {
+            outbox.addAll(packets);
+            assertEquals(packets.getFirst(), outbox.poll());
+            // Removed after a pending packet, it is read again after the restart
+            outbox.remove(packets.get(2));
+        }
+
+        List<P2PPacket> expected = new ArrayList<>(packets.subList(1, packets.size()));
+        try (PeerOutbox outbox = new PeerOutbox(file)) {
+            assertEquals(expected, new ArrayList<>(outbox));
+            outbox.removeIf(p -> !p.equals(packets.getLast()));
+            assertEquals(List.of(packets.getLast()), new ArrayList<>(outbox));
+            outbox.poll();
+            // The log starts over once empty
+            outbox.add(packets.getFirst());
+        }
+
+        try (PeerOutbox outbox = new PeerOutbox(file)) {
+            assertEquals(List.of(packets.getFirst()), new ArrayList<>(outbox));
+            outbox.clear();
+        }
+
+        try (PeerOutbox outbox = new PeerOutbox(file)) {
+            assertTrue(outbox.isEmpty());
+        }
+    }
+
+    @Test
+    void logOfAQueueWhichNeverEmptiesIsCompacted(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("outbox").resolve("test2.log");
+        UUID chatId = UUID.randomUUID();
+        P2PPacket stuck = new MessagePacket(chatId, new StringMessage("stuck", Map.of("test1", 0), "test1"));
+
+        P2PPacket last = null;
+        try (PeerOutbox outbox = new PeerOutbox(file)) {
+            // The first packet is never acked, the following ones are
+            outbox.add(stuck);
+            for (int i = 1; i <= 10_000; i++) {
+                last = new MessagePacket(chatId, new StringMessage("x".repeat(200), Map.of("test1", i), "test1"));
+                outbox.add(last);
+                P2PPacket toAck = last;
+                outbox.removeIf(p -> p == toAck);
+            }
+            outbox.add(last);
+            // About 3 MB were appended in total
+            assertTrue(Files.size(file) <= 4 * 65536, STR."\{Files.size(file)} bytes");
+        }
+
+        try (PeerOutbox outbox = new PeerOutbox(file)) {
+            // Packets acked after the last compaction are read again, as after the stuck one
+            List<P2PPacket> restored = new ArrayList<>(outbox);
+            assertEquals(stuck, restored.getFirst());
+            assertEquals(last, restored.getLast());
+        }
+    }
+}
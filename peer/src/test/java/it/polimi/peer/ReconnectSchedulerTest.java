@@ -0,0 +1,130 @@
+package it.polimi.peer;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReconnectSchedulerTest {
+
+    @Test
+    void delayGrowsUpToTheMax() {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            var reconnections = new ReconnectScheduler(scheduler, _ -> new CompletableFuture<>(),
+                    Duration.ofMillis(100), Duration.ofMillis(1000), 1);
+
+            long[] expected = {100, 200, 400, 800, 1000, 1000, 1000};
+            for (int failures = 0; failures < 100; failures++) {
+                long delay = expected[Math.min(failures, expected.length - 1)];
+                for (int i = 0; i < 20; i++) {
+                    long actual = reconnections.delayMillis(failures);
+                    assertTrue(actual >= delay / 2 && actual <= delay,
+                            STR."\{failures} failures: \{actual} not in [\{delay / 2}, \{delay}]");
+                }
+            }
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    void retriesUntilConnected() throws InterruptedException {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            Map<String, Integer> attempts = new ConcurrentHashMap<>();
+            CountDownLatch connected = new CountDownLatch(1);
+            var reconnections = new ReconnectScheduler(scheduler, id -> {
+                if (attempts.merge(id, 1, Integer::sum) < 4)
+                    return CompletableFuture.failedFuture(new IOException("unreachable"));
+                connected.countDown();
+                return CompletableFuture.completedFuture(null);
+            }, Duration.ofMillis(10), Duration.ofMillis(40), 1);
+
+            reconnections.start(Set.of("a"));
+            assertEquals(Set.of("a"), reconnections.getScheduled());
+
+            assertTrue(connected.await(2, TimeUnit.SECONDS));
+            // Wait for the completion to be processed
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+            while (!reconnections.getScheduled().isEmpty() && System.nanoTime() < deadline)
+                Thread.sleep(5);
+            assertEquals(Set.of(), reconnections.getScheduled());
+            assertEquals(4, attempts.get("a"));
+
+            // Not retried after connected
+            Thread.sleep(100);
+            assertEquals(4, attempts.get("a"));
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    void removedAndStoppedPeersAreNotRetried() throws InterruptedException {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            AtomicInteger attempts = new AtomicInteger();
+            var reconnections = new ReconnectScheduler(scheduler, _ -> {
+                attempts.incrementAndGet();
+                return CompletableFuture.failedFuture(new IOException("unreachable"));
+            }, Duration.ofMillis(50), Duration.ofMillis(50), 1);
+
+            // Not running yet
+            reconnections.add("a");
+            assertEquals(Set.of(), reconnections.getScheduled());
+
+            reconnections.start(Set.of("a", "b"));
+            reconnections.remove("a");
+            assertEquals(Set.of("b"), reconnections.getScheduled());
+
+            reconnections.stop();
+            assertEquals(Set.of(), reconnections.getScheduled());
+            reconnections.add("c");
+            Thread.sleep(200);
+            assertEquals(0, attempts.get());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    void limitsAttemptsInFlight() throws InterruptedException {
+        final int peers = 50;
+        final int maxInFlight = 4;
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            Queue<CompletableFuture<Void>> running = new ConcurrentLinkedQueue<>();
+            Set<String> attempted = ConcurrentHashMap.newKeySet();
+            var reconnections = new ReconnectScheduler(scheduler, id -> {
+                attempted.add(id);
+                var res = new CompletableFuture<Void>();
+                running.add(res);
+                return res;
+            }, Duration.ofMillis(10), Duration.ofSeconds(10), maxInFlight);
+
+            reconnections.start(IntStream.range(0, peers).mapToObj(i -> STR."peer\{i}").toList());
+            Thread.sleep(200);
+            // All due, only some of them running
+            assertEquals(maxInFlight, running.size());
+
+            // Completing an attempt lets the next one run
+            for (int done = 0; done < peers; done++) {
+                var attempt = running.poll();
+                assertNotNull(attempt, STR."\{done} done, no attempt running");
+                attempt.complete(null);
+                assertTrue(running.size() <= maxInFlight);
+            }
+            assertEquals(peers, attempted.size());
+            assertEquals(Set.of(), reconnections.getScheduled());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+}
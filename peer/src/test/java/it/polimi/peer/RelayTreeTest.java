@@ -0,0 +1,60 @@
+package it.polimi.peer;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RelayTreeTest {
+    private static final int MEMBERS = 500;
+
+    private static List<String> members() {
+        return IntStream.range(0, MEMBERS).mapToObj(i -> STR."peer\{i}").toList();
+    }
+
+    /**
+     * @return for each member reached by a message of the root, its depth in the tree
+     */
+    private static Map<String, Integer> disseminate(RelayTree tree, String root, Predicate<String> reachable) {
+        Map<String, Integer> depths = new HashMap<>();
+        depths.put(root, 0);
+        Deque<String> toVisit = new ArrayDeque<>(List.of(root));
+        while (!toVisit.isEmpty()) {
+            String member = toVisit.remove();
+            for (String child : tree.children(root, member, reachable)) {
+                assertNull(depths.put(child, depths.get(member) + 1), STR."\{child} received the message twice");
+                toVisit.add(child);
+            }
+        }
+        return depths;
+    }
+
+    @Test
+    void everyReachableMemberReceivesTheMessageOnce() {
+        List<String> members = members();
+        RelayTree tree = new RelayTree(members, 4);
+
+        for (String root : List.of("peer0", "peer123", "peer499")) {
+            Map<String, Integer> depths = disseminate(tree, root, _ -> true);
+            assertEquals(Set.copyOf(members), depths.keySet());
+            // 1 + 4 + 16 + 64 + 256 < 500 members
+            assertEquals(5, Collections.max(depths.values()));
+            assertEquals(4, tree.children(root, root, _ -> true).size());
+        }
+
+        // The tree goes around unreachable members, including whole chains of them
+        Random random = new Random(42);
+        Set<String> unreachable = members.stream().filter(_ -> random.nextDouble() < 0.2).collect(Collectors.toSet());
+        unreachable.remove("peer7");
+        Map<String, Integer> depths = disseminate(tree, "peer7", m -> !unreachable.contains(m));
+        Set<String> expected = new HashSet<>(members);
+        expected.removeAll(unreachable);
+        assertEquals(expected, depths.keySet());
+
+        assertEquals(Set.of(), tree.children("unknown", "peer0", _ -> true));
+    }
+}
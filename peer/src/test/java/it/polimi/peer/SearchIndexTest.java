@@ -0,0 +1,50 @@
+package it.polimi.peer;
+
+import it.polimi.messages.MessageId;
+import it.polimi.messages.StringMessage;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SearchIndexTest {
+
+    private static StringMessage msg(String text, String sender, int clock) {
+        return new StringMessage(text, Map.of(sender, clock), sender);
+    }
+
+    @Test
+    void messagesContainingAllWordsAreFound() {
+        SearchIndex index = new SearchIndex();
+        index.add(msg("Hello world", "test1", 1));
+        index.add(msg("hello, again!", "test2", 1));
+        index.add(msg("The WORLD is big; hello", "test1", 2));
+        index.add(msg("nothing here", "test3", 1));
+
+        assertEquals(List.of(new MessageId("test1", 1), new MessageId("test2", 1), new MessageId("test1", 2)), index.search("HELLO"));
+        assertEquals(List.of(new MessageId("test1", 1), new MessageId("test1", 2)), index.search("world hello"));
+        assertEquals(List.of(new MessageId("test1", 2)), index.search("big world"));
+        assertTrue(index.search("hello missing").isEmpty());
+        assertTrue(index.search("  ...  ").isEmpty());
+        assertEquals(List.of(new MessageId("test2", 1), new MessageId("test1", 2)), index.search("hello", 2));
+        assertEquals(4, index.size());
+    }
+
+    @Test
+    void chatIndexesDeliveredAndRestoredMessages() {
+        ChatRoom chat = new ChatRoom("room", Set.of("test1", "test2"), _ -> {
+        });
+        chat.createLocalMessage("first message", "test1");
+        chat.addMessage(new StringMessage("second message", Map.of("test1", 1, "test2", 1), "test2"));
+        assertEquals(List.of(new MessageId("test1", 1), new MessageId("test2", 1)), chat.search("message"));
+
+        ChatRoom restored = new ChatRoom("room", Set.of("test1", "test2"), chat.getId(), _ -> {
+        }, chat.getVectorClocks(), Set.of(), chat.getReceivedMsgs());
+        assertTrue(restored.search("second").isEmpty());
+        restored.buildSearchIndex();
+        assertEquals(List.of(new MessageId("test2", 1)), restored.search("second"));
+    }
+}
@@ -0,0 +1,61 @@
+package it.polimi.peer.events;
+
+import it.polimi.messages.Message;
+import it.polimi.messages.StringMessage;
+import it.polimi.peer.ChatRoom;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EventBusTest {
+
+    @Test
+    void slowSubscriberReceivesCoalescedBursts() throws InterruptedException {
+        ChatRoom chat = new ChatRoom("room", Set.of("test1"), _ -> {
+        });
+        int n = 1000;
+        List<Message> msgs = new ArrayList<>();
+        for (int i = 1; i <= n; i++)
+            msgs.add(new StringMessage(String.valueOf(i), Map.of("test1", i), "test1"));
+
+        try (EventBus bus = new EventBus()) {
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(1);
+            List<PeerEvent> received = new ArrayList<>();
+            bus.subscribe(e -> {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                received.add(e);
+                if (e instanceof UserDisconnected)
+                    done.countDown();
+            }, true);
+
+            // The subscriber is blocked, publishing must not wait for it
+            bus.publish(new RoomAdded(chat));
+            msgs.forEach(m -> bus.publish(new MessagesAdded(chat, List.of(m))));
+            bus.publish(new UserDisconnected("test2"));
+            release.countDown();
+
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(new RoomAdded(chat), received.getFirst());
+            assertEquals(new UserDisconnected("test2"), received.getLast());
+            // Messages arrive in order, in fewer events than published
+            List<Message> delivered = received.stream()
+                    .filter(e -> e instanceof MessagesAdded)
+                    .flatMap(e -> ((MessagesAdded) e).messages().stream())
+                    .toList();
+            assertEquals(msgs, delivered);
+            assertTrue(received.size() < n + 2);
+        }
+    }
+}
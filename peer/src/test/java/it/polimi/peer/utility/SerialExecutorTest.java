@@ -0,0 +1,80 @@
+package it.polimi.peer.utility;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SerialExecutorTest {
+
+    @Test
+    void tasksRunInOrderAndExecutorsInParallel() throws InterruptedException {
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            SerialExecutor blocked = new SerialExecutor(executor);
+            SerialExecutor serial = new SerialExecutor(executor);
+
+            CountDownLatch release = new CountDownLatch(1);
+            blocked.execute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+
+            int n = 1000;
+            List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch done = new CountDownLatch(1);
+            serial.execute(() -> {
+                throw new IllegalStateException("Failing task");
+            });
+            for (int i = 0; i < n; i++) {
+                int idx = i;
+                serial.execute(() -> order.add(idx));
+            }
+            serial.execute(done::countDown);
+
+            // The other executor is still blocked
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(IntStream.range(0, n).boxed().toList(), order);
+            release.countDown();
+        }
+    }
+
+    @Test
+    void idleCallbackRunsOnceAllTasksHaveRun() throws InterruptedException {
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            BlockingQueue<Boolean> idle = new LinkedBlockingQueue<>();
+            AtomicReference<SerialExecutor> serial = new AtomicReference<>();
+            serial.set(new SerialExecutor(executor, () -> idle.add(serial.get().isIdle())));
+            assertTrue(serial.get().isIdle());
+
+            CountDownLatch release = new CountDownLatch(1);
+            serial.get().execute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            serial.get().execute(() -> {
+            });
+            assertFalse(serial.get().isIdle());
+            release.countDown();
+
+            assertEquals(true, idle.poll(5, TimeUnit.SECONDS));
+            assertNull(idle.poll(100, TimeUnit.MILLISECONDS));
+        }
+    }
+}